@@ -13,6 +13,14 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks live apart from the tests and see the package-private classes of main
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output + configurations["runtimeClasspath"]
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 dependencies {
     // Logging
     compile("org.slf4j:slf4j-api:1.7.26")
@@ -27,6 +35,10 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH benchmarks
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 val run by tasks.getting(JavaExec::class) {
@@ -37,6 +49,24 @@ tasks {
     test {
         maxHeapSize = "128m"
         useJUnitPlatform()
+        // Tests of multi-gigabyte tables are only run with -Dlsm.largeTests=true
+        systemProperty("lsm.largeTests", System.getProperty("lsm.largeTests", "false"))
+    }
+
+    // Runs the benchmarks matching -Pbenchmarks=<regexp>, e.g. gradle jmh -Pbenchmarks=ReadBenchmark.getMiss,
+    // forked JVMs get -Xmx128m like the DAO itself
+    register<JavaExec>("jmh") {
+        description = "Runs JMH benchmarks"
+        group = "verification"
+        classpath = sourceSets["jmh"].runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        args = listOf(
+                project.findProperty("benchmarks")?.toString() ?: ".*",
+                "-rf", "json",
+                "-rff", "$buildDir/reports/jmh/results.json")
+        doFirst {
+            mkdir("$buildDir/reports/jmh")
+        }
     }
 }
 
@@ -0,0 +1,92 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Data shared by the benchmarks. Keys are numbered, key i is a big-endian int padded with zeros
+ * in front to the key size, so their byte order is the numeric one.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+        // Not instantiable
+    }
+
+    @NotNull
+    static ByteBuffer key(
+            final int i,
+            final int keySize) {
+        final ByteBuffer key = ByteBuffer.allocate(Math.max(keySize, Integer.BYTES));
+        key.putInt(key.capacity() - Integer.BYTES, i);
+        return key;
+    }
+
+    @NotNull
+    static ByteBuffer randomValue(final int valueSize) {
+        final byte[] bytes = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * A compressible value resembling a JSON document.
+     */
+    @NotNull
+    static ByteBuffer json(final int i) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String value = "{\"id\":" + i
+                + ",\"user\":\"user-" + random.nextInt(1000)
+                + "\",\"status\":\"" + (random.nextBoolean() ? "active" : "blocked")
+                + "\",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"balance\":" + random.nextInt(100_000)
+                + ",\"description\":\"The quick brown fox jumps over the lazy dog\"}";
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    static File tempDirectory(@NotNull final String prefix) throws IOException {
+        return java.nio.file.Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(@NotNull final File data) throws IOException {
+        Files.recursiveDelete(data);
+    }
+
+    /**
+     * Config keeping the tables apart, background compactions would change their number under the benchmark.
+     * MemTables are only flushed by {@link DAO#close()}, so the data written at once has to fit the heap.
+     */
+    @NotNull
+    static LSMConfig.Builder separateTables() {
+        return LSMConfig.builder()
+                .flushThreshold(Long.MAX_VALUE)
+                .sizeTieredMinThreshold(Integer.MAX_VALUE)
+                .sizeTieredMaxThreshold(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the even keys from 0 to 2 * (records - 1) to the given number of tables, every table
+     * gets every tables-th key, so all of them overlap and have to be merged by reads.
+     */
+    static void fill(
+            @NotNull final File data,
+            @NotNull final LSMConfig config,
+            final int records,
+            final int tables,
+            final int keySize,
+            final int valueSize) throws IOException {
+        for (int table = 0; table < tables; table++) {
+            // Closing the DAO flushes the memTable to a table of its own
+            try (DAO dao = DAOFactory.create(data, config)) {
+                for (int i = table; i < records; i += tables) {
+                    dao.upsert(key(2 * i, keySize), randomValue(valueSize));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link DAO#compact()} of overlapping tables, see {@link Benchmarks#fill}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class CompactionBenchmark {
+    private static final int RECORDS = 20_000;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"2", "8", "32"})
+    public int tables;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDirectory("compact");
+        Benchmarks.fill(data, Benchmarks.separateTables().build(), RECORDS, tables, keySize, valueSize);
+        dao = DAOFactory.create(data, Benchmarks.separateTables().build());
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a memTable is written to disk, that is the time of the final flush done by {@link DAO#close()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class FlushBenchmark {
+    private static final long BYTES = 32_000_000L;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"NONE", "LZ"})
+    public Compression compression;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDirectory("flush");
+        dao = DAOFactory.create(data, LSMConfig.builder()
+                .flushThreshold(Long.MAX_VALUE)
+                .writeAheadLog(false)
+                .compression(compression)
+                .build());
+        long bytes = 0;
+        for (int i = 0; bytes < BYTES; i++) {
+            final ByteBuffer key = Benchmarks.key(i, keySize);
+            final ByteBuffer value = Benchmarks.json(i);
+            value.limit(Math.min(value.limit(), valueSize));
+            bytes += key.remaining() + value.remaining();
+            dao.upsert(key, value);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void flush() throws IOException {
+        dao.close();
+    }
+}
@@ -0,0 +1,78 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups in overlapping tables, see {@link Benchmarks#fill}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class ReadBenchmark {
+    private static final int RECORDS = 20_000;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"1", "4", "16"})
+    public int tables;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDirectory("read");
+        Benchmarks.fill(data, Benchmarks.separateTables().build(), RECORDS, tables, keySize, valueSize);
+        dao = DAOFactory.create(data, Benchmarks.separateTables().build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() throws IOException {
+        return dao.get(Benchmarks.key(2 * ThreadLocalRandom.current().nextInt(RECORDS), keySize));
+    }
+
+    /**
+     * Looks up the odd keys falling between the stored ones, so only Bloom filters tell the tables don't hold them.
+     */
+    @Benchmark
+    public boolean getMiss() throws IOException {
+        try {
+            dao.get(Benchmarks.key(2 * ThreadLocalRandom.current().nextInt(RECORDS) + 1, keySize));
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range scans of overlapping tables of compressible values for every {@link Compression},
+ * the longest range is the full scan. On-disk size of the tables is logged once they are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class ScanBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(ScanBenchmark.class);
+    private static final int RECORDS = 100_000;
+    private static final int KEY_SIZE = 16;
+
+    @Param({"NONE", "LZ", "DEFLATE"})
+    public Compression compression;
+
+    @Param({"1", "4"})
+    public int tables;
+
+    @Param({"10", "1000", "100000"})
+    public int rangeLength;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDirectory("scan-" + compression);
+        final LSMConfig config = Benchmarks.separateTables().compression(compression).build();
+        long rawBytes = 0;
+        for (int table = 0; table < tables; table++) {
+            try (DAO writer = DAOFactory.create(data, config)) {
+                for (int i = table; i < RECORDS; i += tables) {
+                    final ByteBuffer value = Benchmarks.json(i);
+                    rawBytes += KEY_SIZE + value.remaining();
+                    writer.upsert(Benchmarks.key(i, KEY_SIZE), value);
+                }
+            }
+        }
+        log.info(String.format("%-8s size %6.1f MB (%4.1f%% of raw)",
+                compression,
+                Files.directorySize(data) / 1e6,
+                100.0 * Files.directorySize(data) / rawBytes));
+        dao = DAOFactory.create(data, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void range(final Blackhole blackhole) throws IOException {
+        final int from = ThreadLocalRandom.current().nextInt(RECORDS - rangeLength + 1);
+        final Iterator<Record> records = dao.range(
+                Benchmarks.key(from, KEY_SIZE),
+                Benchmarks.key(from + rangeLength, KEY_SIZE));
+        while (records.hasNext()) {
+            blackhole.consume(records.next());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming of large values in and out of the DAO, with the values kept in the tables or in the value log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class StreamBenchmark {
+    private static final int KEY_SIZE = 16;
+    private static final int KEYS = 8;
+
+    @Param({"1048576", "8388608"})
+    public int valueSize;
+
+    @Param({"0", "65536"})
+    public int valueLogThreshold;
+
+    private File data;
+    private DAO dao;
+    private byte[] value;
+    private FileChannel sink;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDirectory("stream");
+        dao = DAOFactory.create(data, LSMConfig.builder()
+                .flushThreshold(DAOFactory.MAX_HEAP / 8)
+                .valueLogThreshold(valueLogThreshold)
+                .build());
+        value = Benchmarks.randomValue(valueSize).array();
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(Benchmarks.key(i, KEY_SIZE), ByteBuffer.wrap(value));
+        }
+        // Reads go to the tables
+        dao.compact();
+        sink = FileChannel.open(new File(data, "sink").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void upsertStream() throws IOException {
+        dao.upsertStream(Benchmarks.key(next++ % KEYS, KEY_SIZE), new ByteArrayInputStream(value));
+    }
+
+    @Benchmark
+    public void getStream() throws IOException {
+        dao.getStream(Benchmarks.key(next++ % KEYS, KEY_SIZE), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long getTo() throws IOException {
+        sink.position(0);
+        return dao.getTo(Benchmarks.key(next++ % KEYS, KEY_SIZE), sink);
+    }
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -66,6 +67,40 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    Iterator<Record> descendingIterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * down to given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (to == null) {
+            return descendingIterator(from);
+        }
+
+        if (from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+
+        final Record bound = new Record(to, ByteBuffer.allocate(0));
+        return Iters.downTo(descendingIterator(from), bound);
+    }
+
+    /**
+     * Takes a consistent read-only view of the current data, writes made afterwards are not visible through it.
+     * The snapshot holds memory and files until it is closed.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -92,6 +127,23 @@ public interface DAO extends Closeable {
     void getStream(@NotNull ByteBuffer key,
                    @NotNull OutputStream outputStream) throws IOException, NoSuchElementException;
 
+    /**
+     * Writes the value of the given key to the channel, the channel is left open.
+     *
+     * @return number of bytes written
+     * @throws NoSuchElementException if no such record
+     */
+    default long getTo(
+            @NotNull final ByteBuffer key,
+            @NotNull final WritableByteChannel channel) throws IOException, NoSuchElementException {
+        final ByteBuffer value = get(key);
+        final long length = value.remaining();
+        while (value.hasRemaining()) {
+            channel.write(value);
+        }
+        return length;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -108,6 +160,19 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values of the keys from "from" (inclusive) to "to" (exclusive) with a single range tombstone.
+     * Does nothing if "from" is not less than "to".
+     */
+    void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException;
+
+    /**
+     * Applies all the operations of the batch at once: readers see either none or all of them.
+     */
+    void write(@NotNull WriteBatch batch) throws IOException;
+
     /**
      * Perform compaction
      */
@@ -41,6 +41,15 @@ public final class Iters {
         return new UntilIterator<>(iter, until);
     }
 
+    /**
+     * Takes elements of the descending iterator while they are greater than the bound.
+     */
+    public static <E extends Comparable<E>> Iterator<E> downTo(
+            @NotNull final Iterator<E> iter,
+            @NotNull final E bound) {
+        return new DownToIterator<>(iter, bound);
+    }
+
     public static <E> Iterator<E> collapseEquals(
             @NotNull final Iterator<E> iter,
             @NotNull final Function<E, ?> byKey) {
@@ -80,6 +89,35 @@ public final class Iters {
         }
     }
 
+    private static class DownToIterator<E extends Comparable<E>> implements Iterator<E> {
+        private final Iterator<E> iter;
+        private final E bound;
+
+        private E next;
+
+        DownToIterator(
+                @NotNull final Iterator<E> iter,
+                @NotNull final E bound) {
+            this.iter = iter;
+            this.bound = bound;
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null && next.compareTo(bound) > 0;
+        }
+
+        @Override
+        public E next() {
+            assert hasNext();
+
+            final E result = this.next;
+            this.next = iter.hasNext() ? iter.next() : null;
+            return result;
+        }
+    }
+
     private static class CollapseEqualsIterator<E> implements Iterator<E> {
         private final Iterator<E> iter;
         private final Function<E, ?> keyExtractor;
@@ -0,0 +1,66 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removals applied together by {@link DAO#write(WriteBatch)}.
+ * Operations on the same key are applied in the order they were added, so the last one wins.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null for removals
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value.duplicate());
+        return this;
+    }
+
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key.duplicate());
+        values.add(null);
+        return this;
+    }
+
+    /**
+     * Number of operations in the batch.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    public ByteBuffer key(final int i) {
+        return keys.get(i).asReadOnlyBuffer();
+    }
+
+    /**
+     * Value of the i-th operation.
+     *
+     * @return the value or null if the operation is a removal
+     */
+    @Nullable
+    public ByteBuffer value(final int i) {
+        final ByteBuffer value = values.get(i);
+        return value == null ? null : value.asReadOnlyBuffer();
+    }
+
+    public void clear() {
+        keys.clear();
+        values.clear();
+    }
+}
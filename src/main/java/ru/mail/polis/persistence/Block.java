@@ -0,0 +1,278 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Data block of {@link FileTable} written by {@link BlockBuilder}.
+ */
+final class Block {
+    private final ByteBuffer data;
+    private final int restartCount;
+    private final int restartsOffset;
+
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.restartCount = data.getInt(data.limit() - Integer.BYTES);
+        this.restartsOffset = data.limit() - Integer.BYTES - restartCount * Integer.BYTES;
+    }
+
+    /**
+     * Iterates cells starting at "from" key (inclusive) or at the beginning of the block if it is null.
+     *
+     * @param stats counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @Nullable final ByteBuffer from,
+            @Nullable final ReadStats stats) {
+        return new BlockIterator(from, stats);
+    }
+
+    /**
+     * Iterates cells in descending order starting at "from" key (inclusive)
+     * or at the end of the block if it is null.
+     *
+     * @param stats counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @Nullable final ByteBuffer from,
+            @Nullable final ReadStats stats) {
+        return new DescendingBlockIterator(from, stats);
+    }
+
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) {
+        final Cursor cursor = new Cursor(restart(startRestart(key, null)), null);
+        while (cursor.hasNext()) {
+            cursor.advance();
+            final int cmp = cursor.compareKey(key);
+            if (cmp == 0) {
+                return cursor.cell();
+            } else if (cmp > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private int restart(final int i) {
+        return data.getInt(restartsOffset + i * Integer.BYTES);
+    }
+
+    /**
+     * Finds the last restart point with the key not greater than the given one.
+     */
+    private int startRestart(
+            @NotNull final ByteBuffer key,
+            @Nullable final ReadStats stats) {
+        int left = 0;
+        int right = restartCount - 1;
+        int result = 0;
+        int probes = 0;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = compareRestartKey(mid, key);
+            probes++;
+            if (cmp < 0) {
+                result = mid;
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                result = mid;
+                break;
+            }
+        }
+        if (stats != null) {
+            stats.addIndexProbes(probes);
+        }
+        return result;
+    }
+
+    private int compareRestartKey(
+            final int i,
+            @NotNull final ByteBuffer key) {
+        int offset = restart(i);
+        // Restart points share nothing with the previous key
+        offset += Bytes.varIntSize(Bytes.getVarInt(data, offset));
+        final int keyLength = Bytes.getVarInt(data, offset);
+        offset += Bytes.varIntSize(keyLength);
+        return Bytes.compare(data, offset, keyLength, key);
+    }
+
+    /**
+     * Decodes entries one by one restoring their keys from the shared prefixes.
+     */
+    private final class Cursor {
+        @Nullable
+        private final ReadStats stats;
+        private int offset;
+        private byte[] key = new byte[64];
+        private int keyLength;
+        private long timestamp;
+        private int valueOffset;
+        private int valueLength;
+
+        Cursor(
+                final int offset,
+                @Nullable final ReadStats stats) {
+            this.offset = offset;
+            this.stats = stats;
+        }
+
+        boolean hasNext() {
+            return offset < restartsOffset;
+        }
+
+        void advance() {
+            final int shared = Bytes.getVarInt(data, offset);
+            offset += Bytes.varIntSize(shared);
+            final int unshared = Bytes.getVarInt(data, offset);
+            offset += Bytes.varIntSize(unshared);
+            keyLength = shared + unshared;
+            if (key.length < keyLength) {
+                key = Arrays.copyOf(key, Math.max(keyLength, key.length * 2));
+            }
+            for (int i = 0; i < unshared; i++) {
+                key[shared + i] = data.get(offset + i);
+            }
+            offset += unshared;
+            timestamp = data.getLong(offset);
+            offset += Long.BYTES;
+            if (timestamp < 0) {
+                valueLength = 0;
+            } else {
+                valueLength = Bytes.getVarInt(data, offset);
+                offset += Bytes.varIntSize(valueLength);
+                valueOffset = offset;
+                offset += valueLength;
+            }
+            if (stats != null) {
+                stats.addCell();
+            }
+        }
+
+        int compareKey(@NotNull final ByteBuffer other) {
+            return Bytes.compare(key, 0, keyLength, other);
+        }
+
+        @NotNull
+        Cell cell() {
+            final ByteBuffer cellKey = ByteBuffer.wrap(Arrays.copyOf(key, keyLength));
+            if (timestamp < 0) {
+                return new Cell(cellKey, new Value(-timestamp, null));
+            }
+            final ByteBuffer value = data.duplicate();
+            value.position(valueOffset);
+            value.limit(valueOffset + valueLength);
+            return new Cell(cellKey, Value.stored(timestamp, value.slice()));
+        }
+    }
+
+    private final class BlockIterator implements Iterator<Cell> {
+        private final Cursor cursor;
+        private boolean ready;
+
+        BlockIterator(
+                @Nullable final ByteBuffer from,
+                @Nullable final ReadStats stats) {
+            if (from == null) {
+                cursor = new Cursor(0, stats);
+                return;
+            }
+            cursor = new Cursor(restart(startRestart(from, stats)), stats);
+            while (cursor.hasNext()) {
+                cursor.advance();
+                if (cursor.compareKey(from) >= 0) {
+                    ready = true;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ready || cursor.hasNext();
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (ready) {
+                ready = false;
+            } else {
+                cursor.advance();
+            }
+            return cursor.cell();
+        }
+    }
+
+    /**
+     * Goes back one restart interval at a time, since the keys can be restored only going forward:
+     * the cells of the interval are decoded and returned in reverse.
+     */
+    private final class DescendingBlockIterator implements Iterator<Cell> {
+        private final Cell[] cells = new Cell[BlockBuilder.RESTART_INTERVAL];
+        @Nullable
+        private final ReadStats stats;
+        private int count;
+        private int restart;
+
+        DescendingBlockIterator(
+                @Nullable final ByteBuffer from,
+                @Nullable final ReadStats stats) {
+            this.stats = stats;
+            if (from == null) {
+                restart = restartCount - 1;
+                load(null);
+            } else {
+                restart = startRestart(from, stats);
+                load(from);
+            }
+        }
+
+        /**
+         * Decodes the cells of the current restart interval not greater than the given key.
+         */
+        private void load(@Nullable final ByteBuffer from) {
+            final int end = restart + 1 < restartCount ? restart(restart + 1) : restartsOffset;
+            final Cursor cursor = new Cursor(restart(restart), stats);
+            count = 0;
+            while (cursor.offset < end) {
+                cursor.advance();
+                if (from != null && cursor.compareKey(from) > 0) {
+                    break;
+                }
+                cells[count++] = cursor.cell();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (count == 0 && restart > 0) {
+                restart--;
+                load(null);
+            }
+            return count > 0;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Cell cell = cells[--count];
+            cells[count] = null;
+            return cell;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates sorted cells into a data block of {@link FileTable}.
+ * <p>
+ * Every entry stores only the suffix of its key not shared with the previous key:
+ * <pre>
+ * shared (varint) | unshared (varint) | key suffix | timestamp (long, negative for tombstones)
+ *     | value length (varint) | value
+ * </pre>
+ * Values moved to the {@link ValueLog} keep pointers to it instead, see {@link Value#storedTimeStamp()}.
+ * <pre>
+ * </pre>
+ * Every {@link #RESTART_INTERVAL}-th entry is a restart point keeping the whole key,
+ * offsets of the restart points and their number close the block.
+ */
+final class BlockBuilder {
+    static final int RESTART_INTERVAL = 16;
+
+    private ByteBuffer buffer;
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int entries;
+    private byte[] lastKey = new byte[64];
+    private int lastKeyLength;
+
+    BlockBuilder(final int blockSize) {
+        this.buffer = ByteBuffer.allocate(blockSize + blockSize / 4);
+    }
+
+    boolean isEmpty() {
+        return entries == 0;
+    }
+
+    /**
+     * Size of the block if it was finished now.
+     */
+    int sizeInBytes() {
+        return buffer.position() + (restartCount + 1) * Integer.BYTES;
+    }
+
+    void add(@NotNull final Cell cell) {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final int keyLength = key.remaining();
+
+        int shared = 0;
+        if (entries % RESTART_INTERVAL == 0) {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = buffer.position();
+        } else {
+            final int limit = Math.min(lastKeyLength, keyLength);
+            final int position = key.position();
+            while (shared < limit && lastKey[shared] == key.get(position + shared)) {
+                shared++;
+            }
+        }
+        final int unshared = keyLength - shared;
+
+        final ByteBuffer data = value.isRemoved() ? null : value.getData();
+        final int valueSize = data == null ? 0 : Bytes.varIntSize(data.remaining()) + data.remaining();
+        ensureCapacity(Bytes.varIntSize(shared) + Bytes.varIntSize(unshared) + unshared + Long.BYTES + valueSize);
+
+        // Key
+        Bytes.putVarInt(buffer, shared);
+        Bytes.putVarInt(buffer, unshared);
+        final ByteBuffer suffix = key.duplicate();
+        suffix.position(key.position() + shared);
+        buffer.put(suffix);
+        // Timestamp
+        if (data == null) {
+            buffer.putLong(-value.getTimeStamp());
+        } else {
+            buffer.putLong(value.storedTimeStamp());
+            // Value
+            Bytes.putVarInt(buffer, data.remaining());
+            buffer.put(data);
+        }
+
+        if (lastKey.length < keyLength) {
+            lastKey = new byte[Math.max(keyLength, lastKey.length * 2)];
+        }
+        key.get(lastKey, 0, keyLength);
+        lastKeyLength = keyLength;
+        entries++;
+    }
+
+    /**
+     * The greatest key of the block.
+     */
+    @NotNull
+    byte[] lastKey() {
+        return Arrays.copyOf(lastKey, lastKeyLength);
+    }
+
+    /**
+     * Appends the restart points and returns the block ready to be written.
+     * The returned buffer is valid until {@link #reset()}.
+     */
+    @NotNull
+    ByteBuffer finish() {
+        ensureCapacity((restartCount + 1) * Integer.BYTES);
+        for (int i = 0; i < restartCount; i++) {
+            buffer.putInt(restarts[i]);
+        }
+        buffer.putInt(restartCount);
+        final ByteBuffer result = buffer.duplicate();
+        result.flip();
+        return result;
+    }
+
+    void reset() {
+        buffer.clear();
+        restartCount = 0;
+        entries = 0;
+        lastKeyLength = 0;
+    }
+
+    private void ensureCapacity(final int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
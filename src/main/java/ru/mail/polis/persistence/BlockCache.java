@@ -0,0 +1,194 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded {@link FileTable} blocks kept in direct memory and shared by all the tables of the DAO.
+ * <p>
+ * Eviction is segmented LRU: a block enters the probationary segment and moves to the protected one only
+ * when it is read again, so a scan touching every block once evicts other probationary blocks
+ * but leaves the protected working set alone. The cache is split into shards with their own locks.
+ */
+public final class BlockCache {
+    private static final int SHARDS = 16;
+    /**
+     * Part of the capacity available to the protected segment.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final AtomicLong TABLE_IDS = new AtomicLong();
+
+    private final long capacity;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BlockCache(final long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacity / SHARDS);
+        }
+    }
+
+    /**
+     * Unique id of a table to key its blocks, new for every opened table since tables may replace each other.
+     */
+    static long nextTableId() {
+        return TABLE_IDS.incrementAndGet();
+    }
+
+    /**
+     * Looks up the block.
+     *
+     * @return read-only view of the cached block or null if there is no such block
+     */
+    @Nullable
+    ByteBuffer get(
+            final long table,
+            final int block) {
+        final long key = key(table, block);
+        final ByteBuffer data = shard(key).get(key);
+        if (data == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the block to direct memory and caches it.
+     *
+     * @return read-only view of the cached block
+     */
+    @NotNull
+    ByteBuffer put(
+            final long table,
+            final int block,
+            @NotNull final ByteBuffer data) {
+        final ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data.duplicate()).flip();
+        final long key = key(table, block);
+        shard(key).put(key, copy);
+        return copy.asReadOnlyBuffer();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes of the blocks in the cache.
+     */
+    public long getSize() {
+        long size = 0;
+        for (final Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static long key(
+            final long table,
+            final int block) {
+        return table << Integer.SIZE | block & 0xFFFFFFFFL;
+    }
+
+    @NotNull
+    private Shard shard(final long key) {
+        return shards[(int) ((key ^ key >>> 29) * 0x9E3779B97F4A7C15L >>> 60)];
+    }
+
+    private final class Shard {
+        private final long capacity;
+        private final long protectedCapacity;
+        // Insertion ordered, the eldest entry is the least recently used one
+        private final Map<Long, ByteBuffer> probation = new LinkedHashMap<>();
+        private final Map<Long, ByteBuffer> protectedSegment = new LinkedHashMap<>();
+        private long probationSize;
+        private long protectedSize;
+
+        Shard(final long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        }
+
+        synchronized long size() {
+            return probationSize + protectedSize;
+        }
+
+        @Nullable
+        synchronized ByteBuffer get(final long key) {
+            ByteBuffer data = protectedSegment.remove(key);
+            if (data != null) {
+                protectedSegment.put(key, data);
+                return data;
+            }
+            data = probation.remove(key);
+            if (data == null) {
+                return null;
+            }
+            probationSize -= data.capacity();
+            protectedSegment.put(key, data);
+            protectedSize += data.capacity();
+            // Demoted blocks get another chance in probation
+            final Iterator<Map.Entry<Long, ByteBuffer>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedSize > protectedCapacity) {
+                final Map.Entry<Long, ByteBuffer> entry = eldest.next();
+                eldest.remove();
+                protectedSize -= entry.getValue().capacity();
+                probation.put(entry.getKey(), entry.getValue());
+                probationSize += entry.getValue().capacity();
+            }
+            return data;
+        }
+
+        synchronized void put(
+                final long key,
+                @NotNull final ByteBuffer data) {
+            if (data.capacity() > capacity || probation.containsKey(key) || protectedSegment.containsKey(key)) {
+                return;
+            }
+            probation.put(key, data);
+            probationSize += data.capacity();
+            evict(probation, true);
+            evict(protectedSegment, false);
+        }
+
+        private void evict(
+                @NotNull final Map<Long, ByteBuffer> segment,
+                final boolean probationary) {
+            final Iterator<ByteBuffer> eldest = segment.values().iterator();
+            while (probationSize + protectedSize > capacity && eldest.hasNext()) {
+                final int size = eldest.next().capacity();
+                eldest.remove();
+                if (probationary) {
+                    probationSize -= size;
+                } else {
+                    protectedSize -= size;
+                }
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses data blocks of {@link FileTable}.
+ */
+interface BlockCodec {
+    /**
+     * Compresses remaining bytes of the block.
+     *
+     * @return compressed bytes ready to be read
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer block);
+
+    /**
+     * Restores the block compressed by {@link #compress(ByteBuffer)}.
+     *
+     * @param compressed remaining bytes returned by {@link #compress(ByteBuffer)}
+     * @param length     length of the original block
+     * @return the original block ready to be read
+     */
+    @NotNull
+    ByteBuffer decompress(
+            @NotNull ByteBuffer compressed,
+            int length);
+
+    /**
+     * Returns the remaining bytes of the buffer as an array without copying if possible.
+     */
+    @NotNull
+    static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+}
@@ -0,0 +1,360 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads tables made of data blocks with a sparse in-memory index:
+ * <pre>
+ * data blocks | Bloom filter | index | range tombstones | footer
+ * </pre>
+ * Index is the number of blocks (int) followed by the separator key length (varint), the separator key,
+ * offset (long) and length (int) of every block. The separator is not less than any key of its block
+ * and less than any key of the next one (see {@link Bytes#separator}).
+ * <p>
+ * Every block starts with {@link Compression} id (byte), compressed blocks go on with the original length (int)
+ * and the compressed bytes. Values may be pointers to the {@link ValueLog}. Every block ends with CRC32C
+ * of its stored bytes (int), the index length of the block includes it.
+ * <p>
+ * Footer is index offset (long), index length (int), Bloom filter offset (long), Bloom filter length (int),
+ * rows (long), {@link RangeTombstones} offset (long) and length (int), tombstones (long), checksum
+ * of the Bloom filter, the index and the range tombstones (int), checksum of the footer (int), {@link #VERSION}
+ * (int) and {@link #MAGIC} (int). The footer checksum covers all the other footer bytes, the version and
+ * the magic included. The footer and the metadata are verified when the table is opened, a block when it is
+ * read from the file for the first time, so a torn write or a flipped bit fails the read instead of decoding
+ * garbage.
+ * <p>
+ * All the offsets are long, data blocks of large tables are mapped in segments (see {@link MappedSegments}).
+ */
+final class BlockTableReader implements TableReader {
+    static final int MAGIC = 0x4C534D32;
+    static final int VERSION = 1;
+    static final int FOOTER_SIZE = 5 * Long.BYTES + 7 * Integer.BYTES;
+    // Footer bytes preceding its checksum
+    private static final int FOOTER_FIELDS = FOOTER_SIZE - 3 * Integer.BYTES;
+
+    private final MappedSegments data;
+    @Nullable
+    private final BlockCache cache;
+    private final long id;
+    private final long rows;
+    private final long tombstones;
+    private final BloomFilter bloomFilter;
+    private final RangeTombstones rangeTombstones;
+    private final int blocks;
+    private final ByteBuffer index;
+    private final int[] keyOffsets;
+    private final int[] keyLengths;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    // Blocks whose checksums matched, a race only makes a block verified twice
+    private final boolean[] verified;
+
+    /**
+     * Maps the table, the mapping stays valid after the channel is closed.
+     *
+     * @param fc          channel of the table file
+     * @param size        size of the file
+     * @param segmentSize maximum size of a single mapping of data blocks
+     * @param cache       cache of decoded blocks or null
+     * @throws IOException if an I/O error occurred or the footer is corrupted
+     */
+    BlockTableReader(
+            @NotNull final FileChannel fc,
+            final long size,
+            final int segmentSize,
+            @Nullable final BlockCache cache) throws IOException {
+        this.cache = cache;
+        this.id = BlockCache.nextTableId();
+
+        // Footer
+        if (size < FOOTER_SIZE) {
+            throw new IOException("Table is shorter than its footer");
+        }
+        final long footerOffset = size - FOOTER_SIZE;
+        final ByteBuffer footer = fc.map(FileChannel.MapMode.READ_ONLY, footerOffset, FOOTER_SIZE);
+        verifyFooter(fc, footer, footerOffset);
+        final int version = footer.getInt(FOOTER_FIELDS + Integer.BYTES);
+        if (version != VERSION) {
+            throw new IOException("Unsupported table version " + version);
+        }
+        final long indexOffset = footer.getLong();
+        final int indexLength = footer.getInt();
+        final long bloomOffset = footer.getLong();
+        final int bloomLength = footer.getInt();
+        this.rows = footer.getLong();
+        final long rangeOffset = footer.getLong();
+        final int rangeLength = footer.getInt();
+        this.tombstones = footer.getLong();
+        this.rangeTombstones = RangeTombstones.read(
+                fc.map(FileChannel.MapMode.READ_ONLY, rangeOffset, rangeLength));
+
+        // Bloom filter
+        this.bloomFilter = bloomLength == 0
+                ? null
+                : BloomFilter.read(fc.map(FileChannel.MapMode.READ_ONLY, bloomOffset, bloomLength), bloomLength);
+
+        // Data blocks precede the Bloom filter
+        this.data = new MappedSegments(fc, 0L, bloomOffset, segmentSize);
+
+        // Index, separator keys are compared right in the mapped buffer
+        this.index = fc.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+        this.blocks = index.getInt(0);
+        this.keyOffsets = new int[blocks];
+        this.keyLengths = new int[blocks];
+        this.blockOffsets = new long[blocks];
+        this.blockLengths = new int[blocks];
+        int offset = Integer.BYTES;
+        for (int i = 0; i < blocks; i++) {
+            final int keyLength = Bytes.getVarInt(index, offset);
+            offset += Bytes.varIntSize(keyLength);
+            keyOffsets[i] = offset;
+            keyLengths[i] = keyLength;
+            offset += keyLength;
+            blockOffsets[i] = index.getLong(offset);
+            offset += Long.BYTES;
+            blockLengths[i] = index.getInt(offset);
+            offset += Integer.BYTES;
+        }
+        this.verified = new boolean[blocks];
+    }
+
+    /**
+     * Checks the footer and the metadata preceding it.
+     *
+     * @param footerOffset offset of the footer in the file
+     */
+    private static void verifyFooter(
+            @NotNull final FileChannel fc,
+            @NotNull final ByteBuffer footer,
+            final long footerOffset) throws IOException {
+        final CRC32C crc = new CRC32C();
+        crc.update(footer.duplicate().limit(FOOTER_FIELDS));
+        crc.update(footer.duplicate().position(FOOTER_FIELDS + Integer.BYTES));
+        if ((int) crc.getValue() != footer.getInt(FOOTER_FIELDS)) {
+            throw new IOException("Checksum mismatch of the footer");
+        }
+        // Bloom filter offset, the metadata lasts up to the footer
+        final long metaOffset = footer.getLong(Long.BYTES + Integer.BYTES);
+        crc.reset();
+        crc.update(fc.map(FileChannel.MapMode.READ_ONLY, metaOffset, footerOffset - metaOffset));
+        if ((int) crc.getValue() != footer.getInt(FOOTER_FIELDS - Integer.BYTES)) {
+            throw new IOException("Checksum mismatch of the Bloom filter, the index or the range tombstones");
+        }
+    }
+
+    @Override
+    public long rows() {
+        return rows;
+    }
+
+    @Override
+    public long tombstones() {
+        return tombstones;
+    }
+
+    @Nullable
+    @Override
+    public BloomFilter bloomFilter() {
+        return bloomFilter;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer firstKey() {
+        return blocks == 0 ? null : block(0, false).iterator(null, null).next().getKey();
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer lastKey() {
+        if (blocks == 0) {
+            return null;
+        }
+        return block(blocks - 1, false).descendingIterator(null, null).next().getKey();
+    }
+
+    /**
+     * Finds the first block which separator key is not less than the given one.
+     */
+    private int blockFor(
+            @NotNull final ByteBuffer key,
+            @Nullable final ReadStats stats) {
+        int left = 0;
+        int right = blocks - 1;
+        int probes = 0;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = Bytes.compare(index, keyOffsets[mid], keyLengths[mid], key);
+            probes++;
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                left = mid;
+                break;
+            }
+        }
+        if (stats != null) {
+            stats.addIndexProbes(probes);
+        }
+        return left;
+    }
+
+    /**
+     * Takes the block from the cache or reads it decompressing if needed.
+     *
+     * @param fillCache whether the block read from the file is put to the cache
+     */
+    @NotNull
+    private Block block(
+            final int i,
+            final boolean fillCache) {
+        return block(i, fillCache, null);
+    }
+
+    @NotNull
+    private Block block(
+            final int i,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        if (stats != null) {
+            stats.addBlock();
+        }
+        if (cache == null) {
+            return new Block(read(i));
+        }
+        final ByteBuffer cached = cache.get(id, i);
+        if (cached != null) {
+            return new Block(cached);
+        }
+        final ByteBuffer data = read(i);
+        return new Block(fillCache ? cache.put(id, i, data) : data);
+    }
+
+    @NotNull
+    private ByteBuffer read(final int i) {
+        ByteBuffer block = data.slice(blockOffsets[i], blockLengths[i]);
+        if (!verified[i]) {
+            if (!matches(block)) {
+                throw new UncheckedIOException(new IOException(
+                        "Checksum mismatch of block " + i + " at offset " + blockOffsets[i]));
+            }
+            verified[i] = true;
+        }
+        block = block.limit(block.limit() - Integer.BYTES).slice();
+        final Compression compression = Compression.forId(block.get());
+        final BlockCodec codec = compression.codec();
+        if (codec == null) {
+            return block.slice();
+        }
+        final int length = block.getInt();
+        return codec.decompress(block.slice(), length);
+    }
+
+    private static boolean matches(@NotNull final ByteBuffer block) {
+        final int end = block.limit() - Integer.BYTES;
+        final CRC32C crc = new CRC32C();
+        crc.update(block.duplicate().limit(end));
+        return (int) crc.getValue() == block.getInt(end);
+    }
+
+    @Override
+    public int verify() {
+        int corrupted = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (matches(data.slice(blockOffsets[i], blockLengths[i]))) {
+                verified[i] = true;
+            } else {
+                corrupted++;
+            }
+        }
+        return corrupted;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final int i = blockFor(key, null);
+        return i < blocks ? block(i, true).get(key) : null;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        return new Iterator<>() {
+            private int next = blockFor(from, stats);
+            private Iterator<Cell> current = next < blocks
+                    ? block(next++, fillCache, stats).iterator(from, stats)
+                    : null;
+
+            @Override
+            public boolean hasNext() {
+                while (current != null && !current.hasNext()) {
+                    current = next < blocks ? block(next++, fillCache, stats).iterator(null, stats) : null;
+                }
+                return current != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        // Blocks after the one found hold only greater keys, all the keys of the preceding ones are less
+        final int start = Math.min(blockFor(from, stats), blocks - 1);
+        return new Iterator<>() {
+            private int next = start;
+            private Iterator<Cell> current = next >= 0
+                    ? block(next--, fillCache, stats).descendingIterator(from, stats)
+                    : null;
+
+            @Override
+            public boolean hasNext() {
+                while (current != null && !current.hasNext()) {
+                    current = next >= 0
+                            ? block(next--, fillCache, stats).descendingIterator(null, stats)
+                            : null;
+                }
+                return current != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mail.polis.persistence;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bloom filter over the keys of a {@link FileTable}.
+ * Probes are derived from a single 128-bit Murmur3 hash by double hashing.
+ */
+final class BloomFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final long[] words;
+    private final long bits;
+    private final int hashes;
+
+    private BloomFilter(final long[] words, final int hashes) {
+        this.words = words;
+        this.bits = (long) words.length * Long.SIZE;
+        this.hashes = hashes;
+    }
+
+    static long hash(@NotNull final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    /**
+     * Checks whether the key could have been added to the filter.
+     *
+     * @return false if the key is definitely absent
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(final long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Size of the serialized filter in bytes.
+     */
+    int sizeInBytes() {
+        return words.length * Long.BYTES + 2 * Integer.BYTES;
+    }
+
+    /**
+     * Serializes the filter as words, number of hashes and number of words.
+     */
+    @NotNull
+    ByteBuffer toBuffer() {
+        final ByteBuffer result = ByteBuffer.allocate(sizeInBytes());
+        for (final long word : words) {
+            result.putLong(word);
+        }
+        result.putInt(hashes);
+        result.putInt(words.length);
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Reads the filter serialized by {@link #toBuffer()} which ends right before given position.
+     */
+    @NotNull
+    static BloomFilter read(
+            @NotNull final ByteBuffer buffer,
+            final int end) {
+        final int count = buffer.getInt(end - Integer.BYTES);
+        final int hashes = buffer.getInt(end - 2 * Integer.BYTES);
+        final int start = end - 2 * Integer.BYTES - count * Long.BYTES;
+        final long[] words = new long[count];
+        for (int i = 0; i < count; i++) {
+            words[i] = buffer.getLong(start + i * Long.BYTES);
+        }
+        return new BloomFilter(words, hashes);
+    }
+
+    /**
+     * Collects key hashes while a table is written and sizes the filter once their number is known.
+     */
+    static final class Builder {
+        private final int bitsPerKey;
+        private long[] keyHashes = new long[1024];
+        private int size;
+
+        Builder(final int bitsPerKey) {
+            assert bitsPerKey > 0;
+            this.bitsPerKey = bitsPerKey;
+        }
+
+        void add(@NotNull final ByteBuffer key) {
+            if (size == keyHashes.length) {
+                keyHashes = Arrays.copyOf(keyHashes, size * 2);
+            }
+            keyHashes[size++] = hash(key);
+        }
+
+        @NotNull
+        BloomFilter build() {
+            // ln(2) * bits per key minimizes the false positive rate
+            final int hashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+            final long bits = Math.max(Long.SIZE, (long) size * bitsPerKey);
+            final long[] words = new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)];
+            final BloomFilter filter = new BloomFilter(words, hashes);
+            for (int i = 0; i < size; i++) {
+                filter.put(keyHashes[i]);
+            }
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helpers for the binary encoding of {@link FileTable}s.
+ */
+final class Bytes {
+    private Bytes() {
+        // Not instantiable
+    }
+
+    /**
+     * Number of bytes taken by the value encoded with {@link #putVarInt(ByteBuffer, int)}.
+     */
+    static int varIntSize(final int value) {
+        assert value >= 0;
+        int size = 1;
+        int rest = value >>> 7;
+        while (rest != 0) {
+            size++;
+            rest >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Writes non-negative int using 7 bits per byte, the high bit marks that more bytes follow.
+     */
+    static void putVarInt(
+            @NotNull final ByteBuffer buffer,
+            final int value) {
+        assert value >= 0;
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Reads int written by {@link #putVarInt(ByteBuffer, int)} advancing buffer position.
+     */
+    static int getVarInt(@NotNull final ByteBuffer buffer) {
+        int result = 0;
+        int shift = 0;
+        while (true) {
+            final byte b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Reads int written by {@link #putVarInt(ByteBuffer, int)} at given absolute position.
+     */
+    static int getVarInt(
+            @NotNull final ByteBuffer buffer,
+            final int offset) {
+        int result = 0;
+        int shift = 0;
+        int position = offset;
+        while (true) {
+            final byte b = buffer.get(position++);
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Compares bytes with the remaining bytes of the buffer the same way as {@link ByteBuffer#compareTo}
+     * does, but without creating buffers.
+     */
+    static int compare(
+            @NotNull final byte[] bytes,
+            final int offset,
+            final int length,
+            @NotNull final ByteBuffer buffer) {
+        final int position = buffer.position();
+        final int common = Math.min(length, buffer.remaining());
+        for (int i = 0; i < common; i++) {
+            final int cmp = Byte.compare(bytes[offset + i], buffer.get(position + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - buffer.remaining();
+    }
+
+    /**
+     * Compares a key stored at given absolute position of the first buffer with the second buffer
+     * the same way as {@link ByteBuffer#compareTo} does, but without creating buffers.
+     */
+    static int compare(
+            @NotNull final ByteBuffer data,
+            final int offset,
+            final int length,
+            @NotNull final ByteBuffer buffer) {
+        final int position = buffer.position();
+        final int common = Math.min(length, buffer.remaining());
+        for (int i = 0; i < common; i++) {
+            final int cmp = Byte.compare(data.get(offset + i), buffer.get(position + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - buffer.remaining();
+    }
+
+    /**
+     * Finds a short key "s" such that "left" &lt;= s &lt; "right", provided that "left" &lt; "right".
+     * Index of {@link FileTable} stores such keys between blocks instead of whole last keys.
+     */
+    @NotNull
+    static byte[] separator(
+            @NotNull final byte[] left,
+            @NotNull final ByteBuffer right) {
+        final int rightLength = right.remaining();
+        final int limit = Math.min(left.length, rightLength);
+        int common = 0;
+        while (common < limit && left[common] == right.get(right.position() + common)) {
+            common++;
+        }
+        if (common == left.length) {
+            return left;
+        }
+        final byte[] result;
+        if (rightLength > common + 1) {
+            // A proper prefix of the right key is less than it, but greater than the left one
+            result = new byte[common + 1];
+            right.duplicate().get(result);
+        } else if (left[common] + 1 < right.get(right.position() + common)) {
+            result = Arrays.copyOf(left, common + 1);
+            result[common]++;
+        } else {
+            result = left;
+        }
+        return result.length < left.length ? result : left;
+    }
+
+    /**
+     * Finds a short key not less than the given one.
+     */
+    @NotNull
+    static byte[] successor(@NotNull final byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != Byte.MAX_VALUE) {
+                final byte[] result = Arrays.copyOf(key, i + 1);
+                result[i]++;
+                return result;
+            }
+        }
+        return key;
+    }
+}
@@ -19,6 +19,13 @@ public class Cell {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * The key itself rather than a view, callers must not change its position or limit.
+     */
+    ByteBuffer key() {
+        return key;
+    }
+
     public Value getValue() {
         return value;
     }
@@ -0,0 +1,52 @@
+package ru.mail.polis.persistence;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link FileTable}s to be merged together into new tables of the output level.
+ */
+final class Compaction {
+    @NotNull
+    final ImmutableList<FileTable> inputs;
+    final int outputLevel;
+    /**
+     * Whether the inputs are merged into a single table taking the generation of the newest of them.
+     */
+    final boolean inPlace;
+
+    private Compaction(
+            @NotNull final ImmutableList<FileTable> inputs,
+            final int outputLevel,
+            final boolean inPlace) {
+        this.inputs = inputs;
+        this.outputLevel = outputLevel;
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * Merges the inputs into tables of new generations in the output level.
+     */
+    @NotNull
+    static Compaction toLevel(
+            @NotNull final ImmutableList<FileTable> inputs,
+            final int outputLevel) {
+        return new Compaction(inputs, outputLevel, false);
+    }
+
+    /**
+     * Merges level 0 tables of consecutive generations into one table in place of the newest of them,
+     * so it keeps its position among the tables flushed before and after them.
+     */
+    @NotNull
+    static Compaction inPlace(@NotNull final ImmutableList<FileTable> inputs) {
+        return new Compaction(inputs, 0, true);
+    }
+
+    /**
+     * A single table overlapping nothing in the output level is just moved there without rewriting.
+     */
+    boolean isTrivialMove() {
+        return !inPlace && inputs.size() == 1 && inputs.get(0).getLevel() < outputLevel;
+    }
+}
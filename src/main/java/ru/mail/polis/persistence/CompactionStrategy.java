@@ -0,0 +1,21 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which {@link FileTable}s {@link LSMDao} merges in the background after every flush.
+ * Implementations are only called from the compaction thread.
+ */
+interface CompactionStrategy {
+    /**
+     * Chooses the next compaction.
+     *
+     * @param files tables in {@link TableSet#RECENCY} order
+     * @return the compaction or null if nothing needs to be compacted
+     */
+    @Nullable
+    Compaction pick(@NotNull List<FileTable> files);
+}
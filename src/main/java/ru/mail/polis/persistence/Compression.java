@@ -0,0 +1,55 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compression of {@link FileTable} data blocks.
+ * The id of the codec is stored with every block, so tables written with different settings can be read.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as is.
+     */
+    NONE(0, null),
+    /**
+     * Fast LZ77 compression by {@link LZCodec}.
+     */
+    LZ(1, new LZCodec()),
+    /**
+     * Deflate by {@link java.util.zip.Deflater}, slower but compresses better.
+     */
+    DEFLATE(2, new DeflateCodec());
+
+    private final byte id;
+    private final BlockCodec codec;
+
+    Compression(
+            final int id,
+            @Nullable final BlockCodec codec) {
+        this.id = (byte) id;
+        this.codec = codec;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    /**
+     * Codec compressing the blocks or null for {@link #NONE}.
+     */
+    @Nullable
+    BlockCodec codec() {
+        return codec;
+    }
+
+    @NotNull
+    static Compression forId(final byte id) {
+        for (final Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + id);
+    }
+}
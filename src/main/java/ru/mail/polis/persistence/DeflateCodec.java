@@ -0,0 +1,60 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link BlockCodec} backed by {@link Deflater} and {@link Inflater}.
+ */
+final class DeflateCodec implements BlockCodec {
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer block) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(BlockCodec.toArray(block));
+            deflater.finish();
+            byte[] result = new byte[block.remaining() / 2 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                length += deflater.deflate(result, length, result.length - length);
+            }
+            return ByteBuffer.wrap(result, 0, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(
+            @NotNull final ByteBuffer compressed,
+            final int length) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(BlockCodec.toArray(compressed));
+            final byte[] result = new byte[length];
+            int inflated = 0;
+            while (inflated < length) {
+                final int n = inflater.inflate(result, inflated, length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Truncated deflate block");
+                }
+                inflated += n;
+            }
+            return ByteBuffer.wrap(result);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted deflate block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -1,190 +1,399 @@
 package ru.mail.polis.persistence;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 
+/**
+ * Table on disk. The file is opened on the first access to its data: the size, the key range
+ * and the tombstones are known beforehand from the {@link Manifest}.
+ */
 public final class FileTable implements Table {
-    private final int rows;
-    private final IntBuffer offsets;
-    private final ByteBuffer cells;
-    private final int sizeFileInByte;
+    private static final int MAX_KEY = 1024;
+
+    private final long sizeFileInByte;
     private final Path path;
+    private final int generation;
+    private final int level;
+    private final Opener opener;
+    @Nullable
+    private final ByteBuffer firstKey;
+    @Nullable
+    private final ByteBuffer lastKey;
+    // The last key is the upper bound of the range tombstones, which the table doesn't hold
+    private final boolean lastKeyExclusive;
+    private final double tombstoneRatio;
+    // Number of tombstone cells or -1 if the manifest didn't keep it
+    private final long tombstones;
 
-    FileTable(final File file) throws IOException {
-        final int sizeFile = (int) file.length();
+    /**
+     * Opens the table mapping it to memory.
+     *
+     * @param file        table file
+     * @param generation  generation of the table
+     * @param level       level of the table
+     * @param cache       cache of decoded blocks or null
+     * @param segmentSize maximum size of a single mapping, tables larger than it are mapped in segments
+     * @throws IOException if an I/O error occurred
+     */
+    FileTable(
+            final File file,
+            final int generation,
+            final int level,
+            @Nullable final BlockCache cache,
+            final int segmentSize) throws IOException {
         this.path = file.toPath();
-        this.sizeFileInByte = sizeFile;
-        final ByteBuffer mapped;
+        this.generation = generation;
+        this.level = level;
+        this.opener = new Opener(path, cache, segmentSize);
+        final TableReader reader = opener.open();
+        this.sizeFileInByte = Files.size(path);
+        final ByteBuffer first = firstKey(reader);
+        final ByteBuffer lastCell = reader.lastKey();
+        final ByteBuffer last = lastKey(lastCell, reader.rangeTombstones());
+        this.firstKey = first == null ? null : lowerBound(first);
+        this.lastKey = last == null ? null : upperBound(last);
+        this.lastKeyExclusive = last != null && !last.equals(lastCell);
+        this.tombstoneRatio = tombstoneRatio(reader);
+        this.tombstones = reader.tombstones();
+    }
 
-        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);) {
-            assert sizeFile <= Integer.MAX_VALUE;
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fc.size())
+    /**
+     * Describes the table without opening it.
+     *
+     * @param file             table file
+     * @param generation       generation of the table
+     * @param level            level of the table
+     * @param size             size of the file
+     * @param firstKey         the smallest key or null if the table is empty
+     * @param lastKey          the greatest key or null if the table is empty
+     * @param lastKeyExclusive whether the last key is the upper bound of the range tombstones
+     * @param tombstoneRatio   share of tombstones among the entries
+     * @param tombstones       number of tombstone cells or -1 if it is unknown
+     * @param cache            cache of decoded blocks or null
+     * @param segmentSize      maximum size of a single mapping
+     */
+    FileTable(
+            final File file,
+            final int generation,
+            final int level,
+            final long size,
+            @Nullable final ByteBuffer firstKey,
+            @Nullable final ByteBuffer lastKey,
+            final boolean lastKeyExclusive,
+            final double tombstoneRatio,
+            final long tombstones,
+            @Nullable final BlockCache cache,
+            final int segmentSize) {
+        this.path = file.toPath();
+        this.generation = generation;
+        this.level = level;
+        this.opener = new Opener(path, cache, segmentSize);
+        this.sizeFileInByte = size;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.lastKeyExclusive = lastKeyExclusive;
+        this.tombstoneRatio = tombstoneRatio;
+        this.tombstones = tombstones;
+    }
+
+    private FileTable(@NotNull final FileTable table, final int level) {
+        this.path = table.path;
+        this.generation = table.generation;
+        this.sizeFileInByte = table.sizeFileInByte;
+        this.opener = table.opener;
+        this.firstKey = table.firstKey;
+        this.lastKey = table.lastKey;
+        this.lastKeyExclusive = table.lastKeyExclusive;
+        this.tombstoneRatio = table.tombstoneRatio;
+        this.tombstones = table.tombstones;
+        this.level = level;
+    }
+
+    @NotNull
+    private static TableReader open(
+            @NotNull final Path path,
+            @Nullable final BlockCache cache,
+            final int segmentSize) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long sizeFile = fc.size();
+            if (sizeFile >= BlockTableReader.FOOTER_SIZE
+                    && readInt(fc, sizeFile - Integer.BYTES) == BlockTableReader.MAGIC) {
+                try {
+                    return new BlockTableReader(fc, sizeFile, segmentSize, cache);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException
+                        | NegativeArraySizeException e) {
+                    // Garbage offsets and lengths behind a footer whose checksum happens to match
+                    throw new IOException("Corrupted table " + path, e);
+                }
+            }
+            if (sizeFile > Integer.MAX_VALUE) {
+                throw new IOException("Table of the legacy format is larger than 2 GB: " + path);
+            }
+            final ByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, sizeFile)
                     .order(ByteOrder.BIG_ENDIAN);
+            return new LegacyTableReader(mapped);
+        }
+    }
+
+    private static int readInt(
+            @NotNull final FileChannel fc,
+            final long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
         }
-        // Rows
-        rows = mapped.getInt(sizeFile - Integer.BYTES);
+        return buffer.getInt(0);
+    }
 
-        // Offset
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Integer.BYTES * rows - Integer.BYTES);
-        offsetBuffer.limit(mapped.limit() - Integer.BYTES);
-        this.offsets = offsetBuffer.slice().asIntBuffer();
+    /**
+     * The smallest key of the table or of its range tombstones.
+     */
+    @Nullable
+    private static ByteBuffer firstKey(@NotNull final TableReader reader) {
+        final ByteBuffer key = reader.firstKey();
+        final RangeTombstones rangeTombstones = reader.rangeTombstones();
+        if (!rangeTombstones.isEmpty() && (key == null || rangeTombstones.first().compareTo(key) < 0)) {
+            return rangeTombstones.first();
+        }
+        return key;
+    }
 
-        // Cells
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
+    /**
+     * The greatest key of the table or the upper bound of its range tombstones if it is greater.
+     * The bound is exclusive, the table is marked to hold only the keys less than it.
+     */
+    @Nullable
+    private static ByteBuffer lastKey(
+            @Nullable final ByteBuffer key,
+            @NotNull final RangeTombstones rangeTombstones) {
+        if (!rangeTombstones.isEmpty() && (key == null || rangeTombstones.last().compareTo(key) > 0)) {
+            return rangeTombstones.last();
+        }
+        return key;
+    }
+
+    /**
+     * A key not greater than the given one and not longer than {@link #MAX_KEY} bytes, huge keys are not kept.
+     */
+    @NotNull
+    private static ByteBuffer lowerBound(@NotNull final ByteBuffer key) {
+        if (key.remaining() <= MAX_KEY) {
+            return key;
+        }
+        return key.duplicate().limit(key.position() + MAX_KEY).slice();
+    }
+
+    /**
+     * A key not less than the given one and not longer than {@link #MAX_KEY} bytes if there is such a key.
+     */
+    @NotNull
+    private static ByteBuffer upperBound(@NotNull final ByteBuffer key) {
+        if (key.remaining() <= MAX_KEY) {
+            return key;
+        }
+        // The prefix with its last byte incremented is greater than every key starting with the prefix
+        for (int i = MAX_KEY - 1; i >= 0; i--) {
+            final byte b = key.get(key.position() + i);
+            if (b != Byte.MAX_VALUE) {
+                final byte[] bound = new byte[i + 1];
+                key.duplicate().get(bound);
+                bound[i] = (byte) (b + 1);
+                return ByteBuffer.wrap(bound);
+            }
+        }
+        return key;
+    }
+
+    private static double tombstoneRatio(@NotNull final TableReader reader) {
+        final long fragments = reader.rangeTombstones().size();
+        final long entries = reader.rows() + fragments;
+        return entries == 0 ? 0.0 : (double) (reader.tombstones() + fragments) / entries;
+    }
+
+    @NotNull
+    private TableReader reader() {
+        return opener.reader();
+    }
+
+    /**
+     * Whether the file has been opened already.
+     */
+    boolean isOpen() {
+        return opener.isOpen();
+    }
+
+    /**
+     * The same table moved to another level without rewriting it.
+     */
+    @NotNull
+    FileTable atLevel(final int level) {
+        return new FileTable(this, level);
     }
 
     @Override
     public long sizeInBytes() {
         return sizeFileInByte;
     }
+
+    /**
+     * Number of tombstone cells, 0 if the table format doesn't keep it.
+     * The table is opened only if the manifest didn't keep the number either.
+     */
+    long tombstones() {
+        return tombstones < 0 ? reader().tombstones() : tombstones;
+    }
+
     /**
-     * Writes MemTable data to disk.
+     * Number of tombstone cells known without opening the table or -1.
+     */
+    long knownTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * Share of tombstones and range tombstone fragments among the entries of the table.
+     */
+    double tombstoneRatio() {
+        return tombstoneRatio;
+    }
+
+    /**
+     * Verifies the checksums of the table opening it if needed.
      *
-     * @param cells iterator of MemTable
-     * @param file    path of the file where data needs to be written
-     * @throws IOException if an I/O error occurred
+     * @return number of corrupted data blocks
+     * @throws IOException if an I/O error occurred or the footer is corrupted
+     */
+    int verify() throws IOException {
+        return opener.open().verify();
+    }
+
+    /**
+     * Checks Bloom filter of the table.
+     *
+     * @return false if the table definitely doesn't contain the key
      */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final BloomFilter bloomFilter = reader().bloomFilter();
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
 
-    static void writeTable(final Iterator<Cell> cells, final File file) throws IOException {
-        final List<Integer> offsets = new ArrayList<>();
-        try (FileChannel fc = FileChannel.open(file.toPath(),
-                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            int offset = 0;
+    /**
+     * Writes MemTable data to disk in the block format read by {@link BlockTableReader}.
+     *
+     * @param cells           iterator of MemTable
+     * @param rangeTombstones range tombstones of MemTable
+     * @param file            path of the file where data needs to be written
+     * @param config          block size, compression and Bloom filter parameters
+     * @throws IOException if an I/O error occurred
+     */
+    static void writeTable(
+            final Iterator<Cell> cells,
+            final RangeTombstones rangeTombstones,
+            final File file,
+            final LSMConfig config) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(file, config)) {
             while (cells.hasNext()) {
-                final Cell cell = cells.next();
-                offsets.add(offset);
-                final ByteBuffer key = cell.getKey();
-                final int keySize = cell.getKey().remaining();
-                final Value value = cell.getValue();
-                // Key
-                fc.write(fromInt(keySize));
-                fc.write(key);
-                offset += keySize +Integer.BYTES+ Long.BYTES;
-                // Timestamp
-                if (value.isRemoved()) {
-                    fc.write(fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(fromLong(cell.getValue().getTimeStamp()));
-                }
-                // Value
-                if (!value.isRemoved()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = value.getData().remaining();
-                    fc.write(fromInt(valueSize));
-                    fc.write(valueData);
-                    offset += Integer.BYTES + valueSize;
-                }
-            }
-            // Offsets
-            for (final Integer anOffset : offsets) {
-                fc.write(fromInt(anOffset));
-            }
-            // Cells
-            fc.write(fromInt(offsets.size()));
-        } catch (IOException e){
-            e.printStackTrace();
-        }
-    }
-
-    private ByteBuffer keyAt(final int i) {
-        assert 0 <= i && i < rows;
-        final int offset = offsets.get(i);
-        final int keySize = cells.getInt(offset);
-        final ByteBuffer key = cells.duplicate();
-        key.position(offset + Integer.BYTES);
-        key.limit(key.position() + keySize);
-        return key.slice();
-    }
-
-    private Cell cellAt(final int i) {
-        assert 0 <= i && i < rows;
-        int offset = offsets.get(i);
-        // Key
-        final int keySize = cells.getInt(offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = cells.duplicate();
-        key.position(offset);
-        key.limit(key.position() + keySize);
-        offset += keySize;
-        // Timestamp
-        final long timestamp = cells.getLong(offset);
-        offset += Long.BYTES;
-        if (timestamp < 0) {
-            return new Cell(key.slice(), new Value(-timestamp, null));
-        } else {
-            final int valueSize = cells.getInt(offset);
-            offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
-            value.position(offset);
-            value.limit(value.position() + valueSize)
-                    .position(offset)
-                    .limit(offset + valueSize);
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
-        }
-    }
-
-    private int position(final ByteBuffer from) {
-        int left = 0;
-        int right = rows - 1;
-        while (left <= right) {
-            final int mid = left + (right - left) / 2;
-            final int cmp = keyAt(mid).compareTo(from);
-            if (cmp < 0) {
-                left = mid + 1;
-            } else if (cmp > 0) {
-                right = mid - 1;
-            } else {
-                return mid;
+                writer.add(cells.next());
             }
+            writer.finish(rangeTombstones);
         }
-        return left;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        return reader().get(key);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return reader().rangeTombstones();
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return new Iterator<>() {
-            int next = position(from);
+        return reader().iterator(from, true, null);
+    }
 
-            @Override
-            public boolean hasNext() {
-                return next < rows;
-            }
+    /**
+     * Iterates cells starting at the given key.
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache,
+     *                  large scans should not evict the blocks used by lookups
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache) {
+        return iterator(from, fillCache, null);
+    }
 
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next++);
-            }
-        };
+    /**
+     * Iterates cells starting at the given key counting the work done.
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache
+     * @param stats     counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        if (stats != null) {
+            stats.addTable();
+        }
+        return reader().iterator(from, fillCache, stats);
     }
 
-    static ByteBuffer fromInt(final int value) {
-        final ByteBuffer result = ByteBuffer.allocate(Integer.BYTES);
-        result.putInt(value);
-        result.rewind();
-        return result;
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from) {
+        return reader().descendingIterator(from, true, null);
     }
 
-    static ByteBuffer fromLong(final long value) {
-        final ByteBuffer result = ByteBuffer.allocate(Long.BYTES);
-        result.putLong(value);
-        result.rewind();
-        return result;
+    /**
+     * Iterates cells in descending order starting at the given key.
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache) {
+        return descendingIterator(from, fillCache, null);
+    }
+
+    /**
+     * Iterates cells in descending order starting at the given key counting the work done.
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache
+     * @param stats     counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        if (stats != null) {
+            stats.addTable();
+        }
+        return reader().descendingIterator(from, fillCache, stats);
     }
 
     @Override
@@ -200,4 +409,115 @@ public final class FileTable implements Table {
     public Path getPath() {
         return path;
     }
+
+    /**
+     * Tables with greater generations hold newer data than the other tables of the same level.
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Level 0 holds flushed tables, tables of the other levels hold older data than the ones of the previous levels.
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Whether the table holds neither cells nor range tombstones, compaction may leave it with everything purged.
+     */
+    boolean isEmpty() {
+        return firstKey == null;
+    }
+
+    /**
+     * The smallest key of the table or of its range tombstones, a prefix of it if the key is huge.
+     */
+    @NotNull
+    ByteBuffer firstKey() {
+        if (firstKey == null) {
+            throw new IllegalStateException("Empty table " + path);
+        }
+        return firstKey.duplicate();
+    }
+
+    /**
+     * The greatest key of the table or the upper bound of its range tombstones, a greater short key if it is huge.
+     * The table doesn't hold the upper bound, see {@link #overlaps}.
+     */
+    @NotNull
+    ByteBuffer lastKey() {
+        if (lastKey == null) {
+            throw new IllegalStateException("Empty table " + path);
+        }
+        return lastKey.duplicate();
+    }
+
+    /**
+     * Checks whether the table may hold keys in the range. A last key taken from the upper bound
+     * of the range tombstones is exclusive, so the tables a compaction splits its output into
+     * don't overlap at their boundary keys.
+     *
+     * @param from the smallest key of the range, inclusive
+     * @param to   the greatest key of the range, inclusive
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        if (isEmpty() || firstKey.compareTo(to) > 0) {
+            return false;
+        }
+        final int cmp = lastKey.compareTo(from);
+        return lastKeyExclusive ? cmp > 0 : cmp >= 0;
+    }
+
+    boolean isLastKeyExclusive() {
+        return lastKeyExclusive;
+    }
+
+    /**
+     * Opens the reader of the table once, the copies of the table moved to other levels share it.
+     */
+    private static final class Opener {
+        private final Path path;
+        @Nullable
+        private final BlockCache cache;
+        private final int segmentSize;
+        private volatile TableReader reader;
+
+        Opener(
+                @NotNull final Path path,
+                @Nullable final BlockCache cache,
+                final int segmentSize) {
+            this.path = path;
+            this.cache = cache;
+            this.segmentSize = segmentSize;
+        }
+
+        boolean isOpen() {
+            return reader != null;
+        }
+
+        @NotNull
+        synchronized TableReader open() throws IOException {
+            if (reader == null) {
+                reader = FileTable.open(path, cache, segmentSize);
+            }
+            return reader;
+        }
+
+        @NotNull
+        TableReader reader() {
+            final TableReader opened = reader;
+            if (opened != null) {
+                return opened;
+            }
+            try {
+                return open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't open table " + path, e);
+            }
+        }
+    }
 }
@@ -0,0 +1,558 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tuning parameters of {@link LSMDao}.
+ */
+public final class LSMConfig {
+    public static final long DEFAULT_FLUSH_THRESHOLD = 2L * 1024 * 1024;
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final long DEFAULT_WAL_SYNC_INTERVAL = 100;
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 0;
+    public static final int DEFAULT_MAPPED_SEGMENT_SIZE = 1 << 30;
+    public static final int DEFAULT_SIZE_TIERED_MIN_THRESHOLD = 4;
+    public static final int DEFAULT_SIZE_TIERED_MAX_THRESHOLD = 32;
+    public static final int DEFAULT_LEVEL0_COMPACTION_TRIGGER = 4;
+    public static final long DEFAULT_LEVEL_BASE_SIZE = 10L * 1024 * 1024;
+    public static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+    public static final long DEFAULT_TARGET_FILE_SIZE = 2L * 1024 * 1024;
+    public static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = 0;
+    public static final double DEFAULT_TOMBSTONE_COMPACTION_RATIO = 0.2;
+    public static final int DEFAULT_VALUE_LOG_THRESHOLD = 0;
+    public static final long DEFAULT_VALUE_LOG_FILE_SIZE = 256L * 1024 * 1024;
+    public static final long DEFAULT_VALUE_LOG_GC_INTERVAL = 60_000;
+    public static final double DEFAULT_VALUE_LOG_GC_RATIO = 0.5;
+    public static final long DEFAULT_SCRUB_INTERVAL = 0;
+
+    private final long flushThreshold;
+    private final int bloomBitsPerKey;
+    private final int blockSize;
+    private final Compression compression;
+    private final long blockCacheSize;
+    private final int mappedSegmentSize;
+    private final boolean writeAheadLog;
+    private final SyncPolicy walSyncPolicy;
+    private final long walSyncInterval;
+    private final int sizeTieredMinThreshold;
+    private final int sizeTieredMaxThreshold;
+    private final boolean leveledCompaction;
+    private final int level0CompactionTrigger;
+    private final long levelBaseSize;
+    private final int levelSizeMultiplier;
+    private final long targetFileSize;
+    private final long tombstoneGracePeriod;
+    private final double tombstoneCompactionRatio;
+    private final int valueLogThreshold;
+    private final long valueLogFileSize;
+    private final long valueLogGcInterval;
+    private final double valueLogGcRatio;
+    private final boolean metrics;
+    private final boolean jmx;
+    @Nullable
+    private final MetricsListener metricsListener;
+    private final boolean readStats;
+    private final long scrubInterval;
+
+    private LSMConfig(@NotNull final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.mappedSegmentSize = builder.mappedSegmentSize;
+        this.writeAheadLog = builder.writeAheadLog;
+        this.walSyncPolicy = builder.walSyncPolicy;
+        this.walSyncInterval = builder.walSyncInterval;
+        this.sizeTieredMinThreshold = builder.sizeTieredMinThreshold;
+        this.sizeTieredMaxThreshold = builder.sizeTieredMaxThreshold;
+        this.leveledCompaction = builder.leveledCompaction;
+        this.level0CompactionTrigger = builder.level0CompactionTrigger;
+        this.levelBaseSize = builder.levelBaseSize;
+        this.levelSizeMultiplier = builder.levelSizeMultiplier;
+        this.targetFileSize = builder.targetFileSize;
+        this.tombstoneGracePeriod = builder.tombstoneGracePeriod;
+        this.tombstoneCompactionRatio = builder.tombstoneCompactionRatio;
+        this.valueLogThreshold = builder.valueLogThreshold;
+        this.valueLogFileSize = builder.valueLogFileSize;
+        this.valueLogGcInterval = builder.valueLogGcInterval;
+        this.valueLogGcRatio = builder.valueLogGcRatio;
+        this.metrics = builder.metrics;
+        this.jmx = builder.jmx;
+        this.metricsListener = builder.metricsListener;
+        this.readStats = builder.readStats;
+        this.scrubInterval = builder.scrubInterval;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @NotNull
+    public static LSMConfig defaults() {
+        return builder().build();
+    }
+
+    /**
+     * Size of memTable in bytes that triggers its flush to disk.
+     */
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * Bits of Bloom filter per key written to each {@link FileTable}, 0 disables filters.
+     */
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    /**
+     * Target size of {@link FileTable} data blocks in bytes.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Compression of {@link FileTable} data blocks, {@link Compression#NONE} unless chosen.
+     */
+    @NotNull
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Capacity in bytes of the off-heap cache of decoded blocks shared by all {@link FileTable}s, 0 disables it.
+     */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    /**
+     * Maximum size in bytes of a single memory mapping of {@link FileTable} data, larger tables are mapped in segments.
+     */
+    public int getMappedSegmentSize() {
+        return mappedSegmentSize;
+    }
+
+    /**
+     * Whether writes are logged to be replayed after a crash before their memTable is flushed, off unless enabled.
+     */
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * When the write-ahead log is forced to disk.
+     */
+    @NotNull
+    public SyncPolicy getWalSyncPolicy() {
+        return walSyncPolicy;
+    }
+
+    /**
+     * Milliseconds between forces of the write-ahead log with {@link SyncPolicy#PERIODIC}.
+     */
+    public long getWalSyncInterval() {
+        return walSyncInterval;
+    }
+
+    /**
+     * Number of similarly sized tables merged together by the default size-tiered compaction.
+     */
+    public int getSizeTieredMinThreshold() {
+        return sizeTieredMinThreshold;
+    }
+
+    /**
+     * Maximum number of tables merged by one size-tiered compaction.
+     */
+    public int getSizeTieredMaxThreshold() {
+        return sizeTieredMaxThreshold;
+    }
+
+    /**
+     * Whether {@link FileTable}s are kept in levels compacted in the background
+     * instead of the default size-tiered compaction, {@link LSMDao#compact()} then
+     * compacts the levels instead of merging all the tables together.
+     */
+    public boolean isLeveledCompaction() {
+        return leveledCompaction;
+    }
+
+    /**
+     * Number of flushed tables in level 0 that triggers their compaction into level 1.
+     */
+    public int getLevel0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    /**
+     * Maximum size of level 1 in bytes.
+     */
+    public long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    /**
+     * How many times every next level may be larger than the previous one.
+     */
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    /**
+     * Size in bytes of data after which a compaction starts the next output table.
+     */
+    public long getTargetFileSize() {
+        return targetFileSize;
+    }
+
+    /**
+     * Milliseconds a tombstone is kept by compactions even if there is no older data left for it to remove.
+     */
+    public long getTombstoneGracePeriod() {
+        return tombstoneGracePeriod;
+    }
+
+    /**
+     * Share of tombstones among the cells of a {@link FileTable} starting from which
+     * compactions take the table before the others.
+     */
+    public double getTombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    /**
+     * Size in bytes starting from which values are written once to the value log, while memTables
+     * and {@link FileTable}s keep only pointers to them, 0 disables the value log.
+     */
+    public int getValueLogThreshold() {
+        return valueLogThreshold;
+    }
+
+    /**
+     * Size in bytes of a value log file after which the next one is started.
+     */
+    public long getValueLogFileSize() {
+        return valueLogFileSize;
+    }
+
+    /**
+     * Milliseconds between background garbage collections of the value log.
+     */
+    public long getValueLogGcInterval() {
+        return valueLogGcInterval;
+    }
+
+    /**
+     * Share of live values at or below which a value log file is rewritten by garbage collection.
+     */
+    public double getValueLogGcRatio() {
+        return valueLogGcRatio;
+    }
+
+    /**
+     * Whether {@link Metrics} are collected, publishing them over JMX or to a listener turns them on too.
+     */
+    public boolean isMetrics() {
+        return metrics || jmx || metricsListener != null;
+    }
+
+    /**
+     * Whether {@link Metrics} are registered as an MBean of the platform MBean server.
+     */
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * Listener getting the {@link Metrics} as they are taken or null.
+     */
+    @Nullable
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Whether iterators count their {@link ReadStats}, the counts are added to the {@link Metrics}
+     * once an iterator is exhausted.
+     */
+    public boolean isReadStats() {
+        return readStats;
+    }
+
+    /**
+     * Milliseconds between background passes verifying the checksums of all the tables, 0 disables them.
+     */
+    public long getScrubInterval() {
+        return scrubInterval;
+    }
+
+    public static final class Builder {
+        private long flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+        private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;
+        private int blockSize = DEFAULT_BLOCK_SIZE;
+        private Compression compression = Compression.NONE;
+        private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+        private int mappedSegmentSize = DEFAULT_MAPPED_SEGMENT_SIZE;
+        private boolean writeAheadLog;
+        private SyncPolicy walSyncPolicy = SyncPolicy.PERIODIC;
+        private long walSyncInterval = DEFAULT_WAL_SYNC_INTERVAL;
+        private int sizeTieredMinThreshold = DEFAULT_SIZE_TIERED_MIN_THRESHOLD;
+        private int sizeTieredMaxThreshold = DEFAULT_SIZE_TIERED_MAX_THRESHOLD;
+        private boolean leveledCompaction;
+        private int level0CompactionTrigger = DEFAULT_LEVEL0_COMPACTION_TRIGGER;
+        private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+        private int levelSizeMultiplier = DEFAULT_LEVEL_SIZE_MULTIPLIER;
+        private long targetFileSize = DEFAULT_TARGET_FILE_SIZE;
+        private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+        private double tombstoneCompactionRatio = DEFAULT_TOMBSTONE_COMPACTION_RATIO;
+        private int valueLogThreshold = DEFAULT_VALUE_LOG_THRESHOLD;
+        private long valueLogFileSize = DEFAULT_VALUE_LOG_FILE_SIZE;
+        private long valueLogGcInterval = DEFAULT_VALUE_LOG_GC_INTERVAL;
+        private double valueLogGcRatio = DEFAULT_VALUE_LOG_GC_RATIO;
+        private boolean metrics;
+        private boolean jmx;
+        @Nullable
+        private MetricsListener metricsListener;
+        private boolean readStats;
+        private long scrubInterval = DEFAULT_SCRUB_INTERVAL;
+
+        private Builder() {
+            // Use LSMConfig.builder()
+        }
+
+        @NotNull
+        public Builder flushThreshold(final long flushThreshold) {
+            if (flushThreshold < 0) {
+                throw new IllegalArgumentException("Negative flush threshold: " + flushThreshold);
+            }
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Builder bloomBitsPerKey(final int bloomBitsPerKey) {
+            if (bloomBitsPerKey < 0) {
+                throw new IllegalArgumentException("Negative bits per key: " + bloomBitsPerKey);
+            }
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockSize(final int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Non-positive block size: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0) {
+                throw new IllegalArgumentException("Negative block cache size: " + blockCacheSize);
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder mappedSegmentSize(final int mappedSegmentSize) {
+            if (mappedSegmentSize <= 0) {
+                throw new IllegalArgumentException("Non-positive mapped segment size: " + mappedSegmentSize);
+            }
+            this.mappedSegmentSize = mappedSegmentSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder writeAheadLog(final boolean writeAheadLog) {
+            this.writeAheadLog = writeAheadLog;
+            return this;
+        }
+
+        @NotNull
+        public Builder walSyncPolicy(@NotNull final SyncPolicy walSyncPolicy) {
+            this.walSyncPolicy = walSyncPolicy;
+            return this;
+        }
+
+        @NotNull
+        public Builder walSyncInterval(final long walSyncInterval) {
+            if (walSyncInterval <= 0) {
+                throw new IllegalArgumentException("Non-positive sync interval: " + walSyncInterval);
+            }
+            this.walSyncInterval = walSyncInterval;
+            return this;
+        }
+
+        @NotNull
+        public Builder sizeTieredMinThreshold(final int sizeTieredMinThreshold) {
+            if (sizeTieredMinThreshold < 2) {
+                throw new IllegalArgumentException("Size-tiered threshold less than 2: " + sizeTieredMinThreshold);
+            }
+            this.sizeTieredMinThreshold = sizeTieredMinThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Builder sizeTieredMaxThreshold(final int sizeTieredMaxThreshold) {
+            if (sizeTieredMaxThreshold < 2) {
+                throw new IllegalArgumentException("Size-tiered threshold less than 2: " + sizeTieredMaxThreshold);
+            }
+            this.sizeTieredMaxThreshold = sizeTieredMaxThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Builder leveledCompaction(final boolean leveledCompaction) {
+            this.leveledCompaction = leveledCompaction;
+            return this;
+        }
+
+        @NotNull
+        public Builder level0CompactionTrigger(final int level0CompactionTrigger) {
+            if (level0CompactionTrigger < 1) {
+                throw new IllegalArgumentException("Non-positive level 0 trigger: " + level0CompactionTrigger);
+            }
+            this.level0CompactionTrigger = level0CompactionTrigger;
+            return this;
+        }
+
+        @NotNull
+        public Builder levelBaseSize(final long levelBaseSize) {
+            if (levelBaseSize <= 0) {
+                throw new IllegalArgumentException("Non-positive level base size: " + levelBaseSize);
+            }
+            this.levelBaseSize = levelBaseSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder levelSizeMultiplier(final int levelSizeMultiplier) {
+            if (levelSizeMultiplier < 2) {
+                throw new IllegalArgumentException("Level size multiplier less than 2: " + levelSizeMultiplier);
+            }
+            this.levelSizeMultiplier = levelSizeMultiplier;
+            return this;
+        }
+
+        @NotNull
+        public Builder targetFileSize(final long targetFileSize) {
+            if (targetFileSize <= 0) {
+                throw new IllegalArgumentException("Non-positive target file size: " + targetFileSize);
+            }
+            this.targetFileSize = targetFileSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder tombstoneGracePeriod(final long tombstoneGracePeriod) {
+            if (tombstoneGracePeriod < 0) {
+                throw new IllegalArgumentException("Negative tombstone grace period: " + tombstoneGracePeriod);
+            }
+            this.tombstoneGracePeriod = tombstoneGracePeriod;
+            return this;
+        }
+
+        @NotNull
+        public Builder tombstoneCompactionRatio(final double tombstoneCompactionRatio) {
+            if (!(tombstoneCompactionRatio > 0 && tombstoneCompactionRatio <= 1)) {
+                throw new IllegalArgumentException("Tombstone ratio out of (0, 1]: " + tombstoneCompactionRatio);
+            }
+            this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogThreshold(final int valueLogThreshold) {
+            if (valueLogThreshold < 0) {
+                throw new IllegalArgumentException("Negative value log threshold: " + valueLogThreshold);
+            }
+            this.valueLogThreshold = valueLogThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogFileSize(final long valueLogFileSize) {
+            if (valueLogFileSize <= 0) {
+                throw new IllegalArgumentException("Non-positive value log file size: " + valueLogFileSize);
+            }
+            this.valueLogFileSize = valueLogFileSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogGcInterval(final long valueLogGcInterval) {
+            if (valueLogGcInterval <= 0) {
+                throw new IllegalArgumentException("Non-positive value log GC interval: " + valueLogGcInterval);
+            }
+            this.valueLogGcInterval = valueLogGcInterval;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogGcRatio(final double valueLogGcRatio) {
+            if (!(valueLogGcRatio >= 0 && valueLogGcRatio < 1)) {
+                throw new IllegalArgumentException("Value log GC ratio out of [0, 1): " + valueLogGcRatio);
+            }
+            this.valueLogGcRatio = valueLogGcRatio;
+            return this;
+        }
+
+        @NotNull
+        public Builder metrics(final boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        @NotNull
+        public Builder jmx(final boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        @NotNull
+        public Builder metricsListener(@Nullable final MetricsListener metricsListener) {
+            this.metricsListener = metricsListener;
+            return this;
+        }
+
+        @NotNull
+        public Builder readStats(final boolean readStats) {
+            this.readStats = readStats;
+            return this;
+        }
+
+        @NotNull
+        public Builder scrubInterval(final long scrubInterval) {
+            if (scrubInterval < 0) {
+                throw new IllegalArgumentException("Negative scrub interval: " + scrubInterval);
+            }
+            this.scrubInterval = scrubInterval;
+            return this;
+        }
+
+        @NotNull
+        public LSMConfig build() {
+            if (sizeTieredMaxThreshold < sizeTieredMinThreshold) {
+                throw new IllegalArgumentException("Size-tiered max threshold " + sizeTieredMaxThreshold
+                        + " is less than min threshold " + sizeTieredMinThreshold);
+            }
+            return new LSMConfig(this);
+        }
+    }
+}
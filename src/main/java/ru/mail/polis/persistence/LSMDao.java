@@ -1,39 +1,107 @@
 package ru.mail.polis.persistence;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.io.InputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+/**
+ * LSM-tree based {@link DAO}, safe for concurrent use by multiple threads.
+ * Writers share the memTable and only exclude each other while it is swapped for a fresh one,
+ * readers never lock and work with the {@link TableSet} current at the moment they start.
+ * Flushes and compactions run on their own background threads.
+ */
 public final class LSMDao implements DAO {
+    private static final Logger log = LoggerFactory.getLogger(LSMDao.class);
     private static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
+    private static final String OBSOLETE = ".obsolete";
     private static final String TABLE = "ssTable";
+    private static final int MAX_PENDING_FLUSHES = 2;
 
     private final ByteBuffer nullBuffer = ByteBuffer.allocate(0);
+    private final LSMConfig config;
     private final long flushThreshold;
     private final File base;
-    private final Collection<FileTable> fileTables;
-    private Table memTable;
-    private int generation;
+    private final AtomicReference<TableSet> tables;
+    private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    @Nullable
+    private final ScheduledExecutorService valueLogCollector;
+    @Nullable
+    private final ScheduledExecutorService scrubber;
+    private final CompactionStrategy compactionStrategy;
+    @Nullable
+    private final WriteAheadLog wal;
+    @Nullable
+    private final BlockCache blockCache;
+    @Nullable
+    private final ValueLog valueLog;
+    private final Manifest manifest;
+    private final Object valueLogGcLock = new Object();
+    private final Metrics metrics;
+    @Nullable
+    private final ObjectName mbeanName;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private final Semaphore pendingFlushes;
+    private final AtomicInteger generation;
+    private final LongAdder bloomFilterSkips = new LongAdder();
+    private volatile Throwable flushFailure;
+    private final AtomicInteger openSnapshots = new AtomicInteger();
+    // Guarded by pins: number of open snapshots reading every pinned file, moved tables share the file
+    private final Map<Path, Integer> pins = new HashMap<>();
+    // Guarded by pins: pinned files replaced by compaction and their new names
+    private final Map<Path, Path> obsolete = new HashMap<>();
 
     /**
      * Creates persistence LSMDao.
@@ -43,46 +111,513 @@ public final class LSMDao implements DAO {
      * @throws IOException if an I/O error occurred
      */
     public LSMDao(final File base, final long flushThreshold) throws IOException {
-        assert flushThreshold >= 0L;
+        this(base, LSMConfig.builder().flushThreshold(flushThreshold).build());
+    }
+
+    /**
+     * Creates persistence LSMDao.
+     *
+     * @param base   folder with FileTable
+     * @param config tuning parameters
+     * @throws IOException if an I/O error occurred
+     */
+    public LSMDao(final File base, final LSMConfig config) throws IOException {
         this.base = base;
-        this.flushThreshold = flushThreshold;
-        this.memTable = new MemTable();
-        this.fileTables = new ArrayList<>();
-
-        try (Stream<Path> pStream = Files.walk(base.toPath(), 1)
-                .filter(p -> p.getFileName().toString().endsWith(SUFFIX))) {
-            pStream.collect(Collectors.toList()).forEach(path -> {
-                final File file = path.toFile();
-                if (!path.getFileName().toString().startsWith("trash")) {
-                    final String[] str = file.getName().split(TABLE);
-                    try {
-                        fileTables.add(new FileTable(file));
-                        generation = Math.max(generation, Integer.parseInt(str[0]));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        this.config = config;
+        this.flushThreshold = config.getFlushThreshold();
+        this.metrics = new Metrics(config.isMetrics());
+        if (config.getMetricsListener() != null) {
+            metrics.addListener(config.getMetricsListener());
+        }
+        this.pendingFlushes = new Semaphore(MAX_PENDING_FLUSHES);
+        this.flusher = backgroundExecutor("flusher-" + base.getName());
+        this.compactor = backgroundExecutor("compactor-" + base.getName());
+        this.blockCache = config.getBlockCacheSize() > 0 ? new BlockCache(config.getBlockCacheSize()) : null;
+        this.compactionStrategy = config.isLeveledCompaction()
+                ? new LeveledCompaction(config)
+                : new SizeTieredCompaction(config);
+
+        final List<FileTable> fileTables = new ArrayList<>();
+        final List<String> names = leftovers();
+        int maxGeneration = 0;
+        if (Manifest.exists(base)) {
+            this.manifest = Manifest.open(base);
+            for (final Manifest.Entry entry : manifest.entries()) {
+                if (!names.remove(entry.file)) {
+                    throw new IOException("Table " + entry.file + " listed in the manifest is missing");
+                }
+                fileTables.add(new FileTable(new File(base, entry.file), entry.generation, entry.level,
+                        entry.size, entry.firstKey, entry.lastKey, entry.lastKeyExclusive,
+                        entry.tombstoneRatio, entry.tombstones, blockCache, config.getMappedSegmentSize()));
+                maxGeneration = Math.max(maxGeneration, Math.max(entry.generation, tableNumber(entry.file)));
+            }
+            // Outputs of flushes and compactions interrupted before they were logged
+            for (final String name : names) {
+                log.warn("Deleting {} missing from the manifest", name);
+                Files.delete(base.toPath().resolve(name));
+            }
+        } else {
+            // Tables written before the manifest, all of them are flushed ones of level 0
+            for (final String name : names) {
+                final int fileGeneration = tableNumber(name);
+                try {
+                    fileTables.add(openTable(new File(base, name), fileGeneration, 0));
+                } catch (IOException e) {
+                    log.error("Can't open table " + name, e);
                 }
+                maxGeneration = Math.max(maxGeneration, fileGeneration);
+            }
+            this.manifest = Manifest.create(base, fileTables);
+        }
+        fileTables.sort(TableSet.RECENCY);
+        this.generation = new AtomicInteger(maxGeneration + 1);
+
+        this.valueLog = config.getValueLogThreshold() > 0 ? new ValueLog(base, config) : null;
+        final MemTable memTable = new MemTable();
+        if (config.isWriteAheadLog()) {
+            this.wal = new WriteAheadLog(base, config, valueLog);
+            wal.replay((key, value) -> {
+                Value.advanceTime(value.getTimeStamp());
+                memTable.put(key, value);
+            }, tombstone -> {
+                Value.advanceTime(tombstone.getTimeStamp());
+                memTable.removeRange(tombstone);
             });
-            this.generation++;
+        } else {
+            this.wal = null;
+        }
+        this.tables = new AtomicReference<>(
+                new TableSet(memTable, ImmutableList.of(), ImmutableList.copyOf(fileTables)));
+
+        if (valueLog != null) {
+            this.valueLogCollector = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "vlog-gc-" + base.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getValueLogGcInterval();
+            valueLogCollector.scheduleWithFixedDelay(() -> {
+                try {
+                    collectValueLog();
+                } catch (IOException | RuntimeException e) {
+                    log.error("Value log garbage collection of " + base + " failed", e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.valueLogCollector = null;
+        }
+
+        if (config.getScrubInterval() > 0) {
+            this.scrubber = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "scrubber-" + base.getName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            final long interval = config.getScrubInterval();
+            scrubber.scheduleWithFixedDelay(this::scrub, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.scrubber = null;
+        }
+        registerGauges();
+        this.mbeanName = config.isJmx() ? registerMBean() : null;
+        flushIfNeeded(memTable.sizeInBytes());
+    }
+
+    private void registerGauges() {
+        metrics.gauge("fileTables", () -> tables.get().files.size());
+        metrics.gauge("openFileTables", () -> tables.get().files.stream().filter(FileTable::isOpen).count());
+        metrics.gauge("flushingMemTables", () -> tables.get().flushing.size());
+        metrics.gauge("memTableSize", () -> tables.get().memTable.sizeInBytes());
+        metrics.gauge("diskSize", () -> {
+            long size = 0;
+            for (final FileTable fileTable : tables.get().files) {
+                size += fileTable.sizeInBytes();
+            }
+            return size;
+        });
+        metrics.gauge("tombstones", this::getTombstones);
+        metrics.gauge("bloomFilterSkips", this::getBloomFilterSkips);
+        metrics.gauge("openSnapshots", openSnapshots::get);
+        if (blockCache != null) {
+            metrics.gauge("blockCacheSize", blockCache::getSize);
+            metrics.gauge("blockCacheHits", blockCache::getHits);
+            metrics.gauge("blockCacheMisses", blockCache::getMisses);
+        }
+        if (valueLog != null) {
+            metrics.gauge("valueLogSize", valueLog::sizeInBytes);
         }
     }
 
+    /**
+     * Publishes the metrics over JMX, a DAO of the same folder registered before keeps its MBean.
+     */
+    @Nullable
+    private ObjectName registerMBean() {
+        try {
+            final ObjectName name = new ObjectName(
+                    "ru.mail.polis:type=LSMDao,path=" + ObjectName.quote(base.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            log.warn("Can't register metrics MBean of " + base, e);
+            return null;
+        }
+    }
+
+    /**
+     * Metrics of the DAO, they are only collected if enabled by {@link LSMConfig#isMetrics()}.
+     */
+    @NotNull
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    private FileTable openTable(
+            @NotNull final File file,
+            final int tableGeneration,
+            final int level) throws IOException {
+        return new FileTable(file, tableGeneration, level, blockCache, config.getMappedSegmentSize());
+    }
+
+    /**
+     * Deletes the files left by the previous run: unfinished tables and the tables replaced by compaction
+     * while snapshots were reading them.
+     *
+     * @return names of the table files
+     */
+    @NotNull
+    private List<String> leftovers() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(base.toPath())) {
+            for (final Path path : files.collect(Collectors.toList())) {
+                final String name = path.getFileName().toString();
+                if (tableNumber(name) >= 0) {
+                    names.add(name);
+                } else if (name.endsWith(TABLE + SUFFIX + OBSOLETE) || name.endsWith(TABLE + TEMP)) {
+                    Files.delete(path);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Number in the name of the table file or -1 if the file is not a table.
+     */
+    private static int tableNumber(@NotNull final String name) {
+        if (!name.endsWith(TABLE + SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - TABLE.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NotNull
+    private static ExecutorService backgroundExecutor(@NotNull final String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return Iterators.transform( cellIterator(from), cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        return iterator(from, true);
+    }
+
+    /**
+     * Iterates records starting at the given key. The {@link Metrics.Operation#ITERATOR} latency
+     * covers only opening the iterator, the work of the scan is counted by the {@link ReadStats}.
+     *
+     * @param fillCache whether blocks read by the scan are put to the block cache,
+     *                  a large scan may opt out to leave the cached working set alone
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    public Iterator<Record> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache) throws IOException {
+        final long start = metrics.start();
+        try {
+            final ReadStats stats = readStats();
+            return tracked(records(cellIterator(tables.get(), Long.MAX_VALUE, from, fillCache, stats)), stats);
+        } finally {
+            metrics.record(Metrics.Operation.ITERATOR, start);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> descendingIterator(@NotNull final ByteBuffer from) throws IOException {
+        final long start = metrics.start();
+        try {
+            final ReadStats stats = readStats();
+            return tracked(records(descendingCellIterator(tables.get(), Long.MAX_VALUE, from, stats)), stats);
+        } finally {
+            metrics.record(Metrics.Operation.ITERATOR, start);
+        }
+    }
+
+    /**
+     * Bounds the records the same way as {@link DAO#range}, but keeps the {@link ReadStats} of the iterator.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to == null || from.compareTo(to) > 0) {
+            return DAO.super.range(from, to);
+        }
+        final long start = metrics.start();
+        try {
+            final ReadStats stats = readStats();
+            final Iterator<Record> records = records(cellIterator(tables.get(), Long.MAX_VALUE, from, true, stats));
+            return tracked(Iters.until(records, Record.of(to, ByteBuffer.allocate(0))), stats);
+        } finally {
+            metrics.record(Metrics.Operation.ITERATOR, start);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to == null || from.compareTo(to) < 0) {
+            return DAO.super.descendingRange(from, to);
+        }
+        final long start = metrics.start();
+        try {
+            final ReadStats stats = readStats();
+            final Iterator<Record> records = records(descendingCellIterator(tables.get(), Long.MAX_VALUE, from, stats));
+            return tracked(Iters.downTo(records, Record.of(to, ByteBuffer.allocate(0))), stats);
+        } finally {
+            metrics.record(Metrics.Operation.ITERATOR, start);
+        }
+    }
+
+    @Nullable
+    private ReadStats readStats() {
+        return config.isReadStats() ? new ReadStats() : null;
+    }
+
+    @NotNull
+    private Iterator<Record> tracked(
+            @NotNull final Iterator<Record> records,
+            @Nullable final ReadStats stats) {
+        return stats == null ? records : new TrackedRecords(records, stats);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final long start = metrics.start();
+        try {
+            return value(find(tables.get(), Long.MAX_VALUE, key));
+        } finally {
+            metrics.record(Metrics.Operation.GET, start);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer value(@Nullable final Cell cell) throws IOException {
+        if (cell == null || cell.getValue().isRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return data(cell.getKey(), cell.getValue());
+    }
+
+    /**
+     * The data of the value of the key, see {@link #moved}.
+     */
+    @NotNull
+    private ByteBuffer data(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        try {
+            return data(value);
+        } catch (NoSuchFileException e) {
+            return data(moved(key, value, e));
+        }
+    }
+
+    /**
+     * The copy of the value moved by garbage collection of the value log, which deleted the file
+     * of the pointer read before. The copy keeps the timestamp of the value.
+     *
+     * @param e failure to read the deleted file, rethrown unless the value was moved
+     */
+    @NotNull
+    private Value moved(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            @NotNull final NoSuchFileException e) throws IOException {
+        final Cell cell = find(tables.get(), Long.MAX_VALUE, key);
+        if (cell == null
+                || !cell.getValue().isPointer()
+                || cell.getValue().getTimeStamp() != value.getTimeStamp()
+                || cell.getValue().getData().equals(value.getData())) {
+            throw e;
+        }
+        return cell.getValue();
+    }
+
+    /**
+     * The data of the value, read from the {@link ValueLog} if the value holds a pointer.
+     */
+    @NotNull
+    private ByteBuffer data(@NotNull final Value value) throws IOException {
+        if (!value.isPointer()) {
+            return value.getData();
+        }
+        if (valueLog == null) {
+            throw new IOException("Value log is disabled, but the value is stored there");
+        }
+        return valueLog.read(value.getData());
+    }
+
+    /**
+     * Finds the newest cell of the key unless a newer range tombstone of any table covers it.
+     *
+     * @param current  tables to read
+     * @param snapshot the greatest timestamp visible in the memTable
+     * @return the newest cell of the key (possibly a tombstone) or null if there is no such key
+     */
+    @Nullable
+    private Cell find(
+            @NotNull final TableSet current,
+            final long snapshot,
+            @NotNull final ByteBuffer key) throws IOException {
+        final Cell cell = newest(current, snapshot, key);
+        if (cell == null || cell.getValue().isRemoved()) {
+            return cell;
+        }
+        long deletedAt = current.memTable.rangeTombstones(snapshot).deletedAt(key);
+        for (final Table table : current.flushing) {
+            deletedAt = Math.max(deletedAt, table.rangeTombstones().deletedAt(key));
+        }
+        for (final FileTable fileTable : current.files) {
+            // Tables are opened only if their key ranges take the key
+            if (fileTable.overlaps(key, key)) {
+                deletedAt = Math.max(deletedAt, fileTable.rangeTombstones().deletedAt(key));
+            }
+        }
+        return deletedAt > cell.getValue().getTimeStamp() ? null : cell;
+    }
+
+    /**
+     * Probes the tables from the newest to the oldest one and stops at the first one knowing the key.
+     */
+    @Nullable
+    private Cell newest(
+            @NotNull final TableSet current,
+            final long snapshot,
+            @NotNull final ByteBuffer key) throws IOException {
+        Cell cell = current.memTable.get(key, snapshot);
+        if (cell != null) {
+            return cell;
+        }
+        for (final Table table : current.flushing) {
+            cell = table.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        for (final FileTable fileTable : current.files) {
+            if (!fileTable.overlaps(key, key)) {
+                continue;
+            }
+            if (!fileTable.mightContain(key)) {
+                bloomFilterSkips.increment();
+                continue;
+            }
+            cell = fileTable.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of {@link FileTable} probes avoided by Bloom filters since the DAO was opened.
+     */
+    public long getBloomFilterSkips() {
+        return bloomFilterSkips.sum();
+    }
+
+    /**
+     * Number of tombstone cells in the {@link FileTable}s, not counting the tables of old formats.
+     * The numbers are kept by the manifest, so the tables are not opened.
+     */
+    public long getTombstones() {
+        long tombstones = 0;
+        for (final FileTable fileTable : tables.get().files) {
+            tombstones += fileTable.tombstones();
+        }
+        return tombstones;
+    }
+
+    /**
+     * Cache of decoded blocks or null if it is disabled.
+     */
+    @Nullable
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Number of {@link FileTable}s in every level, from level 0 to the deepest non-empty one.
+     */
+    @NotNull
+    public int[] getTablesPerLevel() {
+        final List<FileTable> files = tables.get().files;
+        final int levels = files.isEmpty() ? 0 : files.get(files.size() - 1).getLevel() + 1;
+        final int[] counts = new int[levels];
+        for (final FileTable fileTable : files) {
+            counts[fileTable.getLevel()]++;
+        }
+        return counts;
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() >= flushThreshold) {
-            flush(memTable.iterator(nullBuffer));
+        final long start = metrics.start();
+        try {
+            write(key, value);
+        } finally {
+            metrics.record(Metrics.Operation.UPSERT, start);
         }
     }
 
+    /**
+     * Stores the value read from the stream. With the value log the values reaching the threshold
+     * are streamed to it without being buffered in memory.
+     */
     @Override
     public void upsertStream(@NotNull final ByteBuffer key, @NotNull final InputStream stream) throws IOException {
+        if (valueLog != null) {
+            final long start = metrics.start();
+            try {
+                final ByteBuffer head = ByteBuffer.wrap(stream.readNBytes(config.getValueLogThreshold()));
+                if (head.remaining() < config.getValueLogThreshold()) {
+                    store(key, head, false);
+                } else {
+                    store(key, valueLog.append(key, head, stream), true);
+                }
+            } finally {
+                metrics.record(Metrics.Operation.UPSERT, start);
+            }
+            return;
+        }
         int read =0;
         final ByteBuffer value = ByteBuffer.allocateDirect(stream.available());
         value.clear();
@@ -96,79 +631,1110 @@ public final class LSMDao implements DAO {
             curent =curent - shiftBuf;
         }
         value.flip();
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() >= flushThreshold) {
-            flush(memTable.iterator(nullBuffer));
-        }
+        upsert(key, value);
     }
 
     @Override
     public void getStream(@NotNull final ByteBuffer key,
                           final OutputStream outputStream) throws IOException, NoSuchElementException {
-        final Iterator<Record> iter = iterator(key);
-        if (!iter.hasNext()) {
-            throw new NoSuchElementException("Not found");
+        try (WritableByteChannel channel = Channels.newChannel(outputStream)) {
+            getTo(key, channel);
         }
-        final Record next = iter.next();
-        if (next.getKey().equals(key)) {
+    }
 
-            final WritableByteChannel channel = Channels.newChannel(outputStream);
-            channel.write(next.getValue());
-            channel.close();
+    /**
+     * Writes the value to the channel. Only values kept in the value log are zero-copy, they are
+     * transferred from its file by {@link java.nio.channels.FileChannel#transferTo}. Values of uncompressed
+     * table blocks are written from the mapped file without a heap copy, values of compressed blocks are
+     * decompressed to the heap first. The {@link Metrics.Operation#GET} latency includes the transfer.
+     */
+    @Override
+    public long getTo(
+            @NotNull final ByteBuffer key,
+            @NotNull final WritableByteChannel channel) throws IOException, NoSuchElementException {
+        final long start = metrics.start();
+        try {
+            return transfer(key, channel);
+        } finally {
+            metrics.record(Metrics.Operation.GET, start);
+        }
+    }
 
-        } else {
+    private long transfer(
+            @NotNull final ByteBuffer key,
+            @NotNull final WritableByteChannel channel) throws IOException {
+        final Cell cell = find(tables.get(), Long.MAX_VALUE, key);
+        if (cell == null || cell.getValue().isRemoved()) {
             throw new NoSuchElementException("Not found");
         }
+        final Value value = cell.getValue();
+        if (value.isPointer() && valueLog != null) {
+            try {
+                return valueLog.transferTo(value.getData(), channel);
+            } catch (NoSuchFileException e) {
+                return valueLog.transferTo(moved(key, value, e).getData(), channel);
+            }
+        }
+        final ByteBuffer data = data(value);
+        final long length = data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        return length;
+    }
+
+    private void flushIfNeeded(final long memTableSize) throws IOException {
+        if (memTableSize >= flushThreshold) {
+            scheduleFlush(false);
+        }
     }
 
-    private void flush(@NotNull final Iterator<Cell> iterator) throws IOException {
-        if (!iterator.hasNext()) return;
-        final File tmp = new File(base, generation + TABLE + TEMP);
-        FileTable.writeTable(iterator, tmp);
-        final File dest = new File(base, generation + TABLE + SUFFIX);
+    /**
+     * Swaps the full memTable for a fresh one and hands it over to the flusher thread.
+     * Blocks while {@link #MAX_PENDING_FLUSHES} memTables are already waiting to be written.
+     *
+     * @param force flush the memTable even if it is below the threshold
+     * @throws IOException if one of the previous flushes failed
+     */
+    private void scheduleFlush(final boolean force) throws IOException {
+        checkFlushFailure();
+        try {
+            pendingFlushes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for flush", e);
+        }
+        final MemTable sealed;
+        final int tableGeneration;
+        final long segment;
+        memTableLock.writeLock().lock();
+        try {
+            sealed = tables.get().memTable;
+            final long size = sealed.sizeInBytes();
+            // Another writer could have already swapped the memTable we saw full
+            if (size == 0 || !force && size < flushThreshold) {
+                pendingFlushes.release();
+                return;
+            }
+            try {
+                segment = wal == null ? 0 : wal.roll();
+            } catch (IOException e) {
+                pendingFlushes.release();
+                throw e;
+            }
+            tableGeneration = generation.getAndIncrement();
+            final MemTable fresh = new MemTable();
+            tables.updateAndGet(t -> t.seal(fresh));
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+        flusher.execute(() -> {
+            try {
+                flush(sealed, tableGeneration);
+                if (wal != null) {
+                    wal.release(segment);
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                log.error("Can't flush memTable to generation " + tableGeneration, e);
+                flushFailure = e;
+            } finally {
+                pendingFlushes.release();
+            }
+        });
+    }
+
+    private void flush(@NotNull final Table table, final int tableGeneration) throws IOException {
+        final long start = metrics.start();
+        final File tmp = new File(base, tableGeneration + TABLE + TEMP);
+        if (valueLog != null) {
+            // The table must not point to the values lost by a crash
+            valueLog.sync();
+        }
+        FileTable.writeTable(table.iterator(nullBuffer), table.rangeTombstones(), tmp, config);
+        final File dest = new File(base, tableGeneration + TABLE + SUFFIX);
         Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        generation++;
-        memTable = new MemTable();
+        final FileTable fileTable = openTable(dest, tableGeneration, 0);
+        manifest.apply(List.of(), List.of(fileTable));
+        tables.updateAndGet(t -> t.flushed(table, fileTable));
+        metrics.record(Metrics.Operation.FLUSH, start);
+        metrics.add(Metrics.Counter.FLUSHES, 1);
+        metrics.add(Metrics.Counter.FLUSHED_BYTES, fileTable.sizeInBytes());
+        scheduleCompaction();
+    }
+
+    /**
+     * Starts background compactions picked by the {@link CompactionStrategy} unless they are already going to run.
+     */
+    private void scheduleCompaction() {
+        if (closed || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(() -> {
+            // Tables flushed from now on need another look
+            compactionScheduled.set(false);
+            try {
+                runCompactions();
+            } catch (IOException | RuntimeException e) {
+                log.error("Background compaction of " + base + " failed", e);
+            }
+        });
+    }
+
+    /**
+     * Waits until every queued memTable is written to disk.
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            pendingFlushes.acquire(MAX_PENDING_FLUSHES);
+            pendingFlushes.release(MAX_PENDING_FLUSHES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for flush", e);
+        }
+        checkFlushFailure();
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final Throwable failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.sizeInBytes() >= flushThreshold) {
-            flush(memTable.iterator(nullBuffer));
+        final long start = metrics.start();
+        try {
+            write(key, null);
+        } finally {
+            metrics.record(Metrics.Operation.REMOVE, start);
+        }
+    }
+
+    /**
+     * Stores the value, the large one goes to the value log first.
+     *
+     * @param data the value or null for a removal
+     */
+    private void write(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data) throws IOException {
+        if (data != null && isLarge(data)) {
+            store(key, valueLog.append(key, data), true);
+        } else {
+            store(key, data, false);
+        }
+    }
+
+    private boolean isLarge(@NotNull final ByteBuffer data) {
+        return valueLog != null && data.remaining() >= config.getValueLogThreshold();
+    }
+
+    /**
+     * Logs the value and puts it to the memTable. The memTable can't be sealed in between,
+     * so the record goes to the log segment of the memTable it is stored in.
+     * The timestamp is taken under the lock too, so a snapshot sees every value older than it.
+     *
+     * @param data    the value or null for a removal
+     * @param pointer whether the data is a {@link ValueLog} pointer
+     */
+    private void store(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data,
+            final boolean pointer) throws IOException {
+        final long size;
+        long sequence = 0;
+        memTableLock.readLock().lock();
+        try {
+            final Value value;
+            if (data == null) {
+                value = Value.tombstone();
+            } else {
+                value = pointer ? Value.pointer(data) : Value.of(data);
+            }
+            if (wal != null) {
+                sequence = wal.append(key, value);
+            }
+            final MemTable memTable = tables.get().memTable;
+            memTable.put(key, value, openSnapshots.get() > 0);
+            size = memTable.sizeInBytes();
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(sequence);
+        }
+        flushIfNeeded(size);
+    }
+
+    /**
+     * Logs the range tombstone and puts it to the memTable, the same way as {@link #write(ByteBuffer, ByteBuffer)}.
+     */
+    @Override
+    public void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        final long size;
+        long sequence = 0;
+        memTableLock.readLock().lock();
+        try {
+            final RangeTombstone tombstone = new RangeTombstone(copy(from), copy(to), Value.reserveTime(1));
+            if (wal != null) {
+                sequence = wal.append(tombstone);
+            }
+            final MemTable memTable = tables.get().memTable;
+            memTable.removeRange(tombstone);
+            size = memTable.sizeInBytes();
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(sequence);
+        }
+        flushIfNeeded(size);
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer key) {
+        final ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+        copy.put(key.duplicate());
+        return copy.flip();
+    }
+
+    /**
+     * Logs the batch as a single record and puts its values to the memTable. The values get consecutive
+     * timestamps and stay invisible to readers until the last of them is stored.
+     * Iterators opened before still may see some of the values and miss the others.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        final int count = batch.size();
+        if (count == 0) {
+            return;
+        }
+        final ByteBuffer[] keys = new ByteBuffer[count];
+        final Value[] values = new Value[count];
+        final ByteBuffer[] data = new ByteBuffer[count];
+        final boolean[] pointers = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = batch.key(i);
+            data[i] = batch.value(i);
+            if (data[i] != null && isLarge(data[i])) {
+                data[i] = valueLog.append(keys[i], data[i]);
+                pointers[i] = true;
+            }
+        }
+        final Value.Batch pending = new Value.Batch();
+        final long size;
+        long sequence = 0;
+        memTableLock.readLock().lock();
+        try {
+            final long timestamp = Value.reserveTime(count);
+            for (int i = 0; i < count; i++) {
+                values[i] = new Value(timestamp + i, data[i] == null ? null : data[i].duplicate(), pointers[i], pending);
+            }
+            if (wal != null) {
+                sequence = wal.append(keys, values);
+            }
+            final MemTable memTable = tables.get().memTable;
+            final boolean keepShadowed = openSnapshots.get() > 0;
+            for (int i = 0; i < count; i++) {
+                memTable.put(keys[i], values[i], keepShadowed);
+            }
+            pending.commit();
+            size = memTable.sizeInBytes();
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(sequence);
+        }
+        flushIfNeeded(size);
+    }
+
+    /**
+     * Pins the current tables and the time. The memTable keeps the values replaced while snapshots are open,
+     * the files replaced by compaction are deleted when the last snapshot reading them is closed.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final TableSet view;
+        final long timestamp;
+        // Writers take timestamps and store values under the read lock, so every older value is in place
+        memTableLock.writeLock().lock();
+        try {
+            timestamp = Value.currentTime();
+            openSnapshots.incrementAndGet();
+            synchronized (pins) {
+                view = tables.get();
+                for (final FileTable fileTable : view.files) {
+                    pins.merge(fileTable.getPath(), 1, Integer::sum);
+                }
+            }
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+        return new PinnedSnapshot(view, timestamp);
+    }
+
+    /**
+     * Unpins the tables of the closed snapshot and deletes the obsolete ones nobody reads any more.
+     */
+    private void release(@NotNull final TableSet view) throws IOException {
+        openSnapshots.decrementAndGet();
+        final List<Path> unused = new ArrayList<>();
+        synchronized (pins) {
+            for (final FileTable fileTable : view.files) {
+                final Path pinned = fileTable.getPath();
+                final int count = pins.get(pinned) - 1;
+                if (count > 0) {
+                    pins.put(pinned, count);
+                    continue;
+                }
+                pins.remove(pinned);
+                final Path path = obsolete.remove(pinned);
+                if (path != null) {
+                    unused.add(path);
+                }
+            }
+        }
+        for (final Path path : unused) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Deletes the file of the table replaced by compaction. If snapshots still read the table,
+     * the file is renamed instead not to be opened again and deleted once they are closed.
+     */
+    private void retire(@NotNull final FileTable table) throws IOException {
+        synchronized (pins) {
+            final Path path = table.getPath();
+            if (pins.containsKey(path)) {
+                final Path renamed = path.resolveSibling(path.getFileName() + OBSOLETE);
+                Files.move(path, renamed, StandardCopyOption.ATOMIC_MOVE);
+                obsolete.put(path, renamed);
+            } else {
+                Files.delete(path);
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        flush(memTable.iterator(nullBuffer));
+        closed = true;
+        if (valueLogCollector != null) {
+            shutdown(valueLogCollector, "Value log collector");
+        }
+        if (scrubber != null) {
+            shutdown(scrubber, "Scrubber");
+        }
+        try {
+            scheduleFlush(true);
+            awaitFlushes();
+        } finally {
+            shutdown(flusher, "Flusher");
+            shutdown(compactor, "Compactor");
+            if (wal != null) {
+                wal.close();
+            }
+            if (valueLog != null) {
+                valueLog.close();
+            }
+            manifest.close();
+            unregisterMBean();
+        }
+        // Everything is flushed, segments left by the previous run could only hold torn records
+        if (wal != null && tables.get().memTable.sizeInBytes() == 0) {
+            wal.release(Long.MAX_VALUE);
+        }
+        // Snapshots left open keep reading the mapped files
+        synchronized (pins) {
+            for (final Path path : obsolete.values()) {
+                Files.deleteIfExists(path);
+            }
+            obsolete.clear();
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            log.warn("Can't unregister metrics MBean of " + base, e);
+        }
+    }
+
+    private void shutdown(
+            @NotNull final ExecutorService executor,
+            @NotNull final String name) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("{} of {} did not terminate", name, base);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    /**
+     * Verifies the checksums of all the tables reporting the corrupted ones to the log and the {@link Metrics}.
+     * Runs in the background every {@link LSMConfig#getScrubInterval()} milliseconds on a thread of the lowest
+     * priority. Blocks are read past the block cache, so scrubbing doesn't evict the ones used by lookups.
+     *
+     * @return number of corrupted tables
+     */
+    public int scrub() {
+        int corrupted = 0;
+        for (final FileTable table : tables.get().files) {
+            if (closed) {
+                break;
+            }
+            try {
+                final int blocks = table.verify();
+                metrics.add(Metrics.Counter.SCRUBBED_TABLES, 1);
+                if (blocks == 0) {
+                    continue;
+                }
+                metrics.add(Metrics.Counter.CORRUPTED_BLOCKS, blocks);
+                log.error("{} corrupted blocks in {}", blocks, table.getPath());
+            } catch (IOException | RuntimeException e) {
+                if (!isLive(table)) {
+                    // Replaced by compaction while the table was being opened
+                    continue;
+                }
+                metrics.add(Metrics.Counter.SCRUBBED_TABLES, 1);
+                log.error("Can't verify " + table.getPath(), e);
+            }
+            metrics.add(Metrics.Counter.CORRUPTED_TABLES, 1);
+            corrupted++;
+        }
+        return corrupted;
+    }
+
+    private boolean isLive(@NotNull final FileTable table) {
+        for (final FileTable fileTable : tables.get().files) {
+            if (fileTable.getPath().equals(table.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the value log files holding few live values, that is the ones still referenced by the newest
+     * version of their keys. Live values are appended to the current file and their keys get new pointers
+     * keeping the original timestamps. A pass flushes the new pointers once and then deletes all the old files.
+     * Runs in the background every {@link LSMConfig#getValueLogGcInterval()} milliseconds
+     * and does nothing while snapshots are open, since they may read any of the old values.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    public void collectValueLog() throws IOException {
+        if (valueLog == null) {
+            return;
+        }
+        synchronized (valueLogGcLock) {
+            final List<Long> collected = new ArrayList<>();
+            for (final long id : valueLog.sealed()) {
+                if (closed || openSnapshots.get() > 0) {
+                    break;
+                }
+                if (collect(id)) {
+                    collected.add(id);
+                }
+            }
+            if (collected.isEmpty()) {
+                return;
+            }
+            // Old pointers may be read from the disk unless the new ones are there too
+            scheduleFlush(true);
+            awaitFlushes();
+            // Files left to a snapshot have nothing live, the next pass deletes them
+            if (openSnapshots.get() > 0) {
+                return;
+            }
+            for (final long id : collected) {
+                valueLog.delete(id);
+            }
+        }
+    }
+
+    /**
+     * Moves the live values of the file unless there are too many of them.
+     *
+     * @return whether the file is to be deleted once the new pointers are flushed
+     */
+    private boolean collect(final long id) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> pointers = new ArrayList<>();
+        final long[] live = new long[1];
+        valueLog.scan(id, (key, pointer) -> {
+            if (isLive(key, pointer)) {
+                keys.add(copy(key));
+                pointers.add(pointer);
+                live[0] += key.remaining() + pointer.getInt(2 * Long.BYTES) + 2 * Integer.BYTES;
+            }
+        });
+        if (live[0] > valueLog.size(id) * config.getValueLogGcRatio()) {
+            return false;
+        }
+
+        final List<ByteBuffer> moved = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            moved.add(valueLog.append(keys.get(i), valueLog.read(pointers.get(i))));
+        }
+        long sequence = 0;
+        // Writers are excluded, so the values checked to be live stay the newest ones until replaced
+        memTableLock.writeLock().lock();
+        try {
+            final MemTable memTable = tables.get().memTable;
+            final boolean keepShadowed = openSnapshots.get() > 0;
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                final Cell cell = find(tables.get(), Long.MAX_VALUE, key);
+                if (cell == null || !isLive(cell.getValue(), pointers.get(i))) {
+                    continue;
+                }
+                // The equal timestamp lets the new pointer replace the old one in the newer table
+                final Value value = Value.pointer(cell.getValue().getTimeStamp(), moved.get(i));
+                if (wal != null) {
+                    sequence = wal.append(key, value);
+                }
+                memTable.put(key, value, keepShadowed);
+            }
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(sequence);
+        }
+        return true;
+    }
+
+    private boolean isLive(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer pointer) throws IOException {
+        final Cell cell = find(tables.get(), Long.MAX_VALUE, key);
+        return cell != null && isLive(cell.getValue(), pointer);
+    }
+
+    private static boolean isLive(
+            @NotNull final Value value,
+            @NotNull final ByteBuffer pointer) {
+        return !value.isRemoved() && value.isPointer() && value.getData().equals(pointer);
+    }
+
+    /**
+     * Total size of the value log files in bytes, 0 if the value log is disabled.
+     */
+    public long getValueLogSize() {
+        return valueLog == null ? 0 : valueLog.sizeInBytes();
+    }
+
+    /**
+     * Merges all the tables on disk into one or, with leveled compaction, compacts levels
+     * until every one of them fits its limits.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Cell> alive = cellIterator(nullBuffer);
-        generation = 1;
-        final File tmp = new File(base, generation + TABLE + TEMP);
-        FileTable.writeTable(alive, tmp);
-        for (final FileTable fileTable : fileTables) {
-            Files.delete(fileTable.getPath());
-        }
-        fileTables.clear();
-        final File file = new File(base, generation + TABLE +  SUFFIX);
+        scheduleFlush(true);
+        if (config.isLeveledCompaction()) {
+            awaitFlushes();
+            runOnCompactor(this::runCompactions);
+            return;
+        }
+        // Every memTable sealed before this point holds a flush permit, so after awaiting them
+        // all the tables older than the result are on disk, while the newer ones are left alone
+        final int tableGeneration = generation.getAndIncrement();
+        awaitFlushes();
+        runOnCompactor(() -> compactAll(tableGeneration));
+    }
+
+    private void runOnCompactor(@NotNull final Callable<Void> task) throws IOException {
+        final Future<Void> result = compactor.submit(task);
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compaction", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    @Nullable
+    private Void compactAll(final int tableGeneration) throws IOException {
+        final List<FileTable> inputs = new ArrayList<>();
+        for (final FileTable fileTable : tables.get().files) {
+            if (fileTable.getGeneration() < tableGeneration) {
+                inputs.add(fileTable);
+            }
+        }
+        if (inputs.isEmpty()) {
+            return null;
+        }
+        final long start = metrics.start();
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final FileTable fileTable : inputs) {
+            iterators.add(fileTable.iterator(nullBuffer, false));
+        }
+        // The oldest data is here, so only the tombstones within the grace period are left
+        final List<FileTable> older = List.of();
+        final RangeTombstones rangeTombstones = rangeTombstones(inputs);
+        final List<FileTable> outputs = writeOutput(purge(merge(iterators, rangeTombstones), older),
+                purge(rangeTombstones, older), tableGeneration, tableGeneration);
+        manifest.apply(inputs, outputs);
+        tables.updateAndGet(t -> t.compacted(inputs, outputs));
+        for (final FileTable fileTable : inputs) {
+            retire(fileTable);
+        }
+        recordCompaction(start, inputs, outputs);
+        return null;
+    }
+
+    /**
+     * Writes the single level 0 output of a compaction unless everything is purged,
+     * an empty table is not installed at all.
+     *
+     * @param fileNumber      number in the name of the file
+     * @param tableGeneration generation of the output
+     * @return the output or nothing
+     */
+    @NotNull
+    private List<FileTable> writeOutput(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final RangeTombstones rangeTombstones,
+            final int fileNumber,
+            final int tableGeneration) throws IOException {
+        if (!cells.hasNext() && rangeTombstones.isEmpty()) {
+            return List.of();
+        }
+        final File tmp = new File(base, fileNumber + TABLE + TEMP);
+        FileTable.writeTable(cells, rangeTombstones, tmp, config);
+        final File file = new File(base, fileNumber + TABLE + SUFFIX);
         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        fileTables.add(new FileTable(file));
-        generation = fileTables.size() + 1;
+        return List.of(openTable(file, tableGeneration, 0));
+    }
+
+    /**
+     * Runs compactions one by one until none is needed or the DAO is closed.
+     */
+    @Nullable
+    private Void runCompactions() throws IOException {
+        Compaction compaction;
+        while (!closed && (compaction = compactionStrategy.pick(tables.get().files)) != null) {
+            if (compaction.inPlace) {
+                compactInPlace(compaction.inputs);
+            } else if (compaction.isTrivialMove()) {
+                move(compaction.inputs.get(0), compaction.outputLevel);
+            } else {
+                compact(compaction);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges level 0 tables of consecutive generations into a table taking the place of the newest of them:
+     * the output gets its generation, but a file of its own. Tombstones are kept while the older tables
+     * may still hold the removed values.
+     */
+    private void compactInPlace(@NotNull final List<FileTable> inputs) throws IOException {
+        final long start = metrics.start();
+        final List<FileTable> older = olderThan(inputs);
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        FileTable newest = inputs.get(0);
+        for (final FileTable fileTable : recencyOrder(inputs)) {
+            iterators.add(fileTable.iterator(nullBuffer, false));
+            if (fileTable.getGeneration() > newest.getGeneration()) {
+                newest = fileTable;
+            }
+        }
+        final RangeTombstones rangeTombstones = rangeTombstones(inputs);
+        final List<FileTable> outputs = writeOutput(purge(merge(iterators, rangeTombstones), older),
+                purge(rangeTombstones, older), generation.getAndIncrement(), newest.getGeneration());
+        manifest.apply(inputs, outputs);
+        tables.updateAndGet(t -> t.compacted(inputs, outputs));
+        for (final FileTable fileTable : inputs) {
+            retire(fileTable);
+        }
+        recordCompaction(start, inputs, outputs);
+    }
+
+    private void move(
+            @NotNull final FileTable input,
+            final int level) throws IOException {
+        final FileTable moved = input.atLevel(level);
+        manifest.apply(List.of(input), List.of(moved));
+        tables.updateAndGet(t -> t.compacted(List.of(input), List.of(moved)));
+    }
+
+    /**
+     * Merges the input tables into the tables of the output level of at most
+     * {@link LSMConfig#getTargetFileSize()} bytes each. Tombstones are kept while
+     * the deeper levels may still hold the removed values, every output gets the part
+     * of the range tombstones between its first key and the first key of the next one.
+     * That bound becomes an exclusive last key, so the outputs don't overlap (see {@link FileTable#overlaps}).
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final long start = metrics.start();
+        final List<FileTable> older = olderThan(compaction.inputs);
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final FileTable fileTable : recencyOrder(compaction.inputs)) {
+            iterators.add(fileTable.iterator(nullBuffer, false));
+        }
+        final RangeTombstones rangeTombstones = rangeTombstones(compaction.inputs);
+        final RangeTombstones kept = purge(rangeTombstones, older);
+        final PeekingIterator<Cell> cells = Iterators.peekingIterator(
+                purge(merge(iterators, rangeTombstones), older));
+        final List<Integer> generations = new ArrayList<>();
+        ByteBuffer lower = null;
+        while (cells.hasNext() || generations.isEmpty() && !kept.isEmpty()) {
+            final int tableGeneration = generation.getAndIncrement();
+            final File tmp = new File(base, tableGeneration + TABLE + TEMP);
+            try (SSTableWriter writer = new SSTableWriter(tmp, config)) {
+                final Iterator<Cell> part = limit(cells, config.getTargetFileSize());
+                while (part.hasNext()) {
+                    writer.add(part.next());
+                }
+                final ByteBuffer upper = cells.hasNext() ? cells.peek().getKey() : null;
+                writer.finish(kept.clip(lower, upper));
+                lower = upper;
+            }
+            generations.add(tableGeneration);
+        }
+
+        // The outputs not logged to the manifest are deleted after a crash, otherwise they would be taken
+        // for the newest tables of level 0 shadowing the data flushed in the meantime
+        final List<FileTable> outputs = new ArrayList<>();
+        for (final int tableGeneration : generations) {
+            final File tmp = new File(base, tableGeneration + TABLE + TEMP);
+            final File file = new File(base, tableGeneration + TABLE + SUFFIX);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            outputs.add(openTable(file, tableGeneration, compaction.outputLevel));
+        }
+        manifest.apply(compaction.inputs, outputs);
+        tables.updateAndGet(t -> t.compacted(compaction.inputs, outputs));
+        for (final FileTable fileTable : compaction.inputs) {
+            retire(fileTable);
+        }
+        recordCompaction(start, compaction.inputs, outputs);
+    }
+
+    private void recordCompaction(
+            final long start,
+            @NotNull final Collection<FileTable> inputs,
+            @NotNull final Collection<FileTable> outputs) {
+        if (!metrics.isEnabled()) {
+            return;
+        }
+        metrics.record(Metrics.Operation.COMPACT, start);
+        metrics.add(Metrics.Counter.COMPACTIONS, 1);
+        long bytesIn = 0;
+        for (final FileTable input : inputs) {
+            bytesIn += input.sizeInBytes();
+        }
+        long bytesOut = 0;
+        for (final FileTable output : outputs) {
+            bytesOut += output.sizeInBytes();
+        }
+        metrics.add(Metrics.Counter.COMPACTION_BYTES_IN, bytesIn);
+        metrics.add(Metrics.Counter.COMPACTION_BYTES_OUT, bytesOut);
+    }
+
+    /**
+     * Tables holding data older than the compaction output, that is the ones following the newest input
+     * in {@link TableSet#RECENCY} order. Tables of the output level not taken by the compaction
+     * don't overlap the inputs, so taking them too does no harm.
+     */
+    @NotNull
+    private List<FileTable> olderThan(@NotNull final Collection<FileTable> inputs) {
+        final List<FileTable> older = new ArrayList<>();
+        boolean newestFound = false;
+        for (final FileTable fileTable : tables.get().files) {
+            if (inputs.contains(fileTable)) {
+                newestFound = true;
+            } else if (newestFound) {
+                older.add(fileTable);
+            }
+        }
+        return older;
+    }
+
+    /**
+     * Moment before which the tombstones may be dropped, {@link Long#MAX_VALUE} without a grace period.
+     */
+    private long purgeHorizon() {
+        final long gracePeriod = config.getTombstoneGracePeriod();
+        return gracePeriod == 0
+                ? Long.MAX_VALUE
+                : Value.timeAt(System.currentTimeMillis() - gracePeriod);
+    }
+
+    /**
+     * Drops the tombstones older than the grace period, whose keys none of the older tables may hold.
+     *
+     * @param older tables holding data older than the compaction output
+     */
+    @NotNull
+    private Iterator<Cell> purge(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final List<FileTable> older) {
+        final long horizon = purgeHorizon();
+        return Iterators.filter(cells, cell -> {
+            final Value value = cell.getValue();
+            if (!value.isRemoved() || value.getTimeStamp() >= horizon) {
+                return true;
+            }
+            final ByteBuffer key = cell.getKey();
+            for (final FileTable fileTable : older) {
+                if (fileTable.overlaps(key, key) && fileTable.mightContain(key)) {
+                    return true;
+                }
+            }
+            return false;
+        });
     }
 
+    /**
+     * Drops the range tombstones older than the grace period, whose ranges none of the older tables overlaps.
+     *
+     * @param older tables holding data older than the compaction output
+     */
     @NotNull
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) throws IOException {
-        final Collection<Iterator<Cell>> filesIterators = new ArrayList<>();
-        for (final FileTable fileTable : fileTables) {
-            filesIterators.add(fileTable.iterator(from));
+    private RangeTombstones purge(
+            @NotNull final RangeTombstones rangeTombstones,
+            @NotNull final List<FileTable> older) {
+        if (rangeTombstones.isEmpty()) {
+            return rangeTombstones;
+        }
+        final long horizon = purgeHorizon();
+        return rangeTombstones.filter(fragment -> {
+            if (fragment.getTimeStamp() >= horizon) {
+                return true;
+            }
+            for (final FileTable fileTable : older) {
+                if (fileTable.overlaps(fragment.getFrom(), fragment.getTo())) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Takes cells until their total size reaches the limit, leaving the rest in the iterator.
+     */
+    @NotNull
+    private static Iterator<Cell> limit(
+            @NotNull final Iterator<Cell> cells,
+            final long limit) {
+        return new Iterator<>() {
+            private long size;
+
+            @Override
+            public boolean hasNext() {
+                return size < limit && cells.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cells.next();
+                final Value value = cell.getValue();
+                size += cell.getKey().remaining() + Long.BYTES + (value.isRemoved() ? 0 : value.getData().remaining());
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Merges the tables skipping tombstones.
+     *
+     * @param current  tables to read
+     * @param snapshot the greatest timestamp visible in the memTable, the other tables hold only older data
+     */
+    @NotNull
+    private static Iterator<Cell> cellIterator(
+            @NotNull final TableSet current,
+            final long snapshot,
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        iterators.add(current.memTable.iterator(from, snapshot));
+        for (final Table table : current.flushing) {
+            iterators.add(table.iterator(from));
+        }
+        for (final FileTable fileTable : current.files) {
+            iterators.add(fileTable.iterator(from, fillCache, stats));
+        }
+        return new MergeIterator(iterators, rangeTombstones(current, snapshot), false, true, stats);
+    }
+
+    @NotNull
+    private static Iterator<Cell> descendingCellIterator(
+            @NotNull final TableSet current,
+            final long snapshot,
+            @NotNull final ByteBuffer from,
+            @Nullable final ReadStats stats) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        iterators.add(current.memTable.descendingIterator(from, snapshot));
+        for (final Table table : current.flushing) {
+            iterators.add(table.descendingIterator(from));
+        }
+        for (final FileTable fileTable : current.files) {
+            iterators.add(fileTable.descendingIterator(from, true, stats));
+        }
+        return new MergeIterator(iterators, rangeTombstones(current, snapshot), true, true, stats);
+    }
+
+    @NotNull
+    private Iterator<Record> records(@NotNull final Iterator<Cell> cells) {
+        return Iterators.transform(cells, cell -> {
+            try {
+                return Record.of(cell.getKey(), data(cell.getKey(), cell.getValue()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Range tombstones of all the tables, the ones of the memTable visible at the given time.
+     */
+    @NotNull
+    private static RangeTombstones rangeTombstones(
+            @NotNull final TableSet current,
+            final long snapshot) {
+        final List<RangeTombstones> all = new ArrayList<>();
+        all.add(current.memTable.rangeTombstones(snapshot));
+        for (final Table table : current.flushing) {
+            all.add(table.rangeTombstones());
+        }
+        for (final FileTable fileTable : current.files) {
+            all.add(fileTable.rangeTombstones());
+        }
+        return RangeTombstones.merge(all);
+    }
+
+    @NotNull
+    private static RangeTombstones rangeTombstones(@NotNull final Collection<FileTable> files) {
+        final List<RangeTombstones> all = new ArrayList<>();
+        for (final FileTable fileTable : files) {
+            all.add(fileTable.rangeTombstones());
+        }
+        return RangeTombstones.merge(all);
+    }
+
+    /**
+     * Merges the sorted iterators leaving only the newest cell of every key not removed by the range tombstones.
+     *
+     * @param iterators iterators of the tables from the newest to the oldest one
+     */
+    @NotNull
+    private static Iterator<Cell> merge(
+            @NotNull final List<Iterator<Cell>> iterators,
+            @NotNull final RangeTombstones rangeTombstones) {
+        return new MergeIterator(iterators, rangeTombstones, false, false);
+    }
+
+    @NotNull
+    private static List<FileTable> recencyOrder(@NotNull final Collection<FileTable> tables) {
+        final List<FileTable> sorted = new ArrayList<>(tables);
+        sorted.sort(TableSet.RECENCY);
+        return sorted;
+    }
+
+    private final class PinnedSnapshot implements Snapshot {
+        private final TableSet view;
+        private final long timestamp;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        PinnedSnapshot(
+                @NotNull final TableSet view,
+                final long timestamp) {
+            this.view = view;
+            this.timestamp = timestamp;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            final ReadStats stats = readStats();
+            return tracked(records(cellIterator(view, timestamp, from, true, stats)), stats);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> descendingIterator(@NotNull final ByteBuffer from) throws IOException {
+            final ReadStats stats = readStats();
+            return tracked(records(descendingCellIterator(view, timestamp, from, stats)), stats);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            return value(find(view, timestamp, key));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                release(view);
+            }
+        }
+    }
+
+    /**
+     * Adds the counts to the {@link Metrics} when the records are exhausted, abandoned iterators are not counted.
+     */
+    private final class TrackedRecords implements TrackedIterator<Record> {
+        private final Iterator<Record> records;
+        private final ReadStats stats;
+        private boolean reported;
+
+        TrackedRecords(
+                @NotNull final Iterator<Record> records,
+                @NotNull final ReadStats stats) {
+            this.records = records;
+            this.stats = stats;
+        }
+
+        @Override
+        public boolean hasNext() {
+            final boolean hasNext = records.hasNext();
+            if (!hasNext && !reported) {
+                reported = true;
+                metrics.add(stats);
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return records.next();
+        }
+
+        @NotNull
+        @Override
+        public ReadStats getReadStats() {
+            return stats;
         }
-        filesIterators.add(memTable.iterator(from));
-        final Iterator<Cell> cells = Iters.collapseEquals(Iterators
-                .mergeSorted(filesIterators, Cell.COMPARATOR), Cell::getKey);
-        return Iterators.filter(cells, cell -> !cell.getValue().isRemoved());
     }
-}
\ No newline at end of file
+}
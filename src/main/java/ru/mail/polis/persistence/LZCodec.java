@@ -0,0 +1,176 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java LZ77 {@link BlockCodec} with a format of its own modeled on the LZ4 block format.
+ * It doesn't keep the end of block rules of LZ4, so LZ4 decoders can't be relied on to read its output.
+ * <p>
+ * Data is a sequence of token (literals length in high 4 bits, match length - 4 in low 4 bits),
+ * literals length extension, literals, match offset (2 bytes, little endian) and match length extension.
+ * Lengths of 15 and more are extended by bytes adding up to the rest, 255 meaning that one more byte follows.
+ * The last sequence has only literals.
+ */
+final class LZCodec implements BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer block) {
+        final byte[] src = BlockCodec.toArray(block);
+        final int length = src.length;
+        final byte[] dst = new byte[length + length / 255 + 16];
+        final int[] table = new int[1 << HASH_BITS];
+        int op = 0;
+        int anchor = 0;
+        int ip = 0;
+        int misses = 0;
+        final int limit = length - MIN_MATCH;
+        while (ip <= limit) {
+            final int sequence = readInt(src, ip);
+            final int hash = hash(sequence);
+            // Table keeps position + 1, so that zero means empty slot
+            final int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Skip faster through incompressible data
+                ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeLiterals(src, anchor, length - anchor, dst, op);
+        return ByteBuffer.wrap(dst, 0, op);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(
+            @NotNull final ByteBuffer compressed,
+            final int length) {
+        final byte[] src = BlockCodec.toArray(compressed);
+        final byte[] dst = new byte[length];
+        int ip = 0;
+        int op = 0;
+        while (ip < src.length) {
+            final int token = src[ip++] & 0xFF;
+            // Literals
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip >= src.length) {
+                break;
+            }
+            // Match
+            final int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            final int ref = op - offset;
+            if (offset == 0 || ref < 0 || op + matchLength > length) {
+                throw new IllegalStateException("Corrupted LZ block");
+            }
+            // Matches may overlap the bytes being written
+            for (int i = 0; i < matchLength; i++) {
+                dst[op + i] = dst[ref + i];
+            }
+            op += matchLength;
+        }
+        if (op != length) {
+            throw new IllegalStateException("Corrupted LZ block");
+        }
+        return ByteBuffer.wrap(dst);
+    }
+
+    private static int writeSequence(
+            final byte[] src,
+            final int literalsOffset,
+            final int literals,
+            final byte[] dst,
+            final int dstOffset,
+            final int offset,
+            final int matchLength) {
+        int op = dstOffset;
+        final int extraMatch = matchLength - MIN_MATCH;
+        final int tokenOffset = op++;
+        dst[tokenOffset] = (byte) (Math.min(literals, 15) << 4 | Math.min(extraMatch, 15));
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalsOffset, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(extraMatch, dst, op);
+    }
+
+    private static int writeLiterals(
+            final byte[] src,
+            final int literalsOffset,
+            final int literals,
+            final byte[] dst,
+            final int dstOffset) {
+        int op = dstOffset;
+        dst[op++] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalsOffset, dst, op, literals);
+        return op + literals;
+    }
+
+    /**
+     * Writes the part of the length which didn't fit into the token.
+     */
+    private static int writeLength(
+            final int length,
+            final byte[] dst,
+            final int dstOffset) {
+        int op = dstOffset;
+        if (length >= 15) {
+            int rest = length - 15;
+            while (rest >= 255) {
+                dst[op++] = (byte) 255;
+                rest -= 255;
+            }
+            dst[op++] = (byte) rest;
+        }
+        return op;
+    }
+
+    private static int readInt(
+            final byte[] src,
+            final int offset) {
+        return (src[offset] & 0xFF) << 24
+                | (src[offset + 1] & 0xFF) << 16
+                | (src[offset + 2] & 0xFF) << 8
+                | src[offset + 3] & 0xFF;
+    }
+
+    private static int hash(final int sequence) {
+        return (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+    }
+}
@@ -0,0 +1,218 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+
+/**
+ * Reads tables with one int offset per row:
+ * <pre>
+ * cells | offsets (int * rows) | rows (int) [| Bloom filter | BLOOM_MAGIC (int)]
+ * </pre>
+ * Cell is key length (int), key, timestamp (long, negative for tombstones), value length (int), value.
+ * Cells are read right from the mapped file, so the block cache is not used.
+ */
+final class LegacyTableReader implements TableReader {
+    /**
+     * Marks files with a Bloom filter trailer, files written before it end with the number of rows.
+     */
+    static final int BLOOM_MAGIC = 0x424C4F4D;
+
+    private final int rows;
+    private final IntBuffer offsets;
+    private final ByteBuffer cells;
+    private final BloomFilter bloomFilter;
+
+    LegacyTableReader(@NotNull final ByteBuffer mapped) {
+        final int sizeFile = mapped.limit();
+
+        // Bloom filter
+        int end = sizeFile;
+        if (sizeFile >= Integer.BYTES && mapped.getInt(sizeFile - Integer.BYTES) == BLOOM_MAGIC) {
+            end -= Integer.BYTES;
+            this.bloomFilter = BloomFilter.read(mapped, end);
+            end -= bloomFilter.sizeInBytes();
+        } else {
+            this.bloomFilter = null;
+        }
+
+        // Rows
+        rows = mapped.getInt(end - Integer.BYTES);
+
+        // Offset
+        final ByteBuffer offsetBuffer = mapped.duplicate();
+        offsetBuffer.position(end - Integer.BYTES * rows - Integer.BYTES);
+        offsetBuffer.limit(end - Integer.BYTES);
+        this.offsets = offsetBuffer.slice().asIntBuffer();
+
+        // Cells
+        final ByteBuffer cellBuffer = mapped.duplicate();
+        cellBuffer.limit(offsetBuffer.position());
+        this.cells = cellBuffer.slice();
+    }
+
+    @Override
+    public long rows() {
+        return rows;
+    }
+
+    @Override
+    public long tombstones() {
+        return 0L;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return RangeTombstones.EMPTY;
+    }
+
+    @Nullable
+    @Override
+    public BloomFilter bloomFilter() {
+        return bloomFilter;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer firstKey() {
+        return rows == 0 ? null : keyAt(0);
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer lastKey() {
+        return rows == 0 ? null : keyAt(rows - 1);
+    }
+
+    private ByteBuffer keyAt(final int i) {
+        assert 0 <= i && i < rows;
+        final int offset = offsets.get(i);
+        final int keySize = cells.getInt(offset);
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset + Integer.BYTES);
+        key.limit(key.position() + keySize);
+        return key.slice();
+    }
+
+    private Cell cellAt(final int i) {
+        assert 0 <= i && i < rows;
+        int offset = offsets.get(i);
+        // Key
+        final int keySize = cells.getInt(offset);
+        offset += Integer.BYTES;
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset);
+        key.limit(key.position() + keySize);
+        offset += keySize;
+        // Timestamp
+        final long timestamp = cells.getLong(offset);
+        offset += Long.BYTES;
+        if (timestamp < 0) {
+            return new Cell(key.slice(), new Value(-timestamp, null));
+        } else {
+            final int valueSize = cells.getInt(offset);
+            offset += Integer.BYTES;
+            final ByteBuffer value = cells.duplicate();
+            value.position(offset);
+            value.limit(value.position() + valueSize)
+                    .position(offset)
+                    .limit(offset + valueSize);
+            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+        }
+    }
+
+    private int position(
+            final ByteBuffer from,
+            @Nullable final ReadStats stats) {
+        int left = 0;
+        int right = rows - 1;
+        int probes = 0;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = keyAt(mid).compareTo(from);
+            probes++;
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                left = mid;
+                break;
+            }
+        }
+        if (stats != null) {
+            stats.addIndexProbes(probes);
+        }
+        return left;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final int i = position(key, null);
+        if (i < rows && keyAt(i).equals(key)) {
+            return cellAt(i);
+        }
+        return null;
+    }
+
+    @Override
+    public int verify() {
+        return 0;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        return new Iterator<>() {
+            int next = position(from, stats);
+
+            @Override
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override
+            public Cell next() {
+                assert hasNext();
+                if (stats != null) {
+                    stats.addCell();
+                }
+                return cellAt(next++);
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            final boolean fillCache,
+            @Nullable final ReadStats stats) {
+        final int start = position(from, stats);
+        return new Iterator<>() {
+            int next = start < rows && keyAt(start).equals(from) ? start : start - 1;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Cell next() {
+                assert hasNext();
+                if (stats != null) {
+                    stats.addCell();
+                }
+                return cellAt(next--);
+            }
+        };
+    }
+}
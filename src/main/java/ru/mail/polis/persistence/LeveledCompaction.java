@@ -0,0 +1,172 @@
+package ru.mail.polis.persistence;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks compactions keeping {@link FileTable}s in levels. Level 0 holds flushed tables with overlapping key ranges,
+ * every next level is a run of non-overlapping tables allowed to grow {@link LSMConfig#getLevelSizeMultiplier()}
+ * times larger than the previous one. A compaction takes one table of an overflowing level (all the overlapping ones
+ * of level 0) and the tables of the next level overlapping it, so it is bounded by a key range
+ * instead of rewriting the whole store.
+ * <p>
+ * Tables of a level are taken in turn by their keys, except that the table with the greatest share of tombstones
+ * goes first once the share reaches {@link LSMConfig#getTombstoneCompactionRatio()}, since compacting it
+ * frees the most space.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int MAX_LEVELS = 7;
+
+    private final LSMConfig config;
+    /**
+     * The greatest key compacted from every level, the next compaction of the level starts after it.
+     */
+    private final ByteBuffer[] pointers = new ByteBuffer[MAX_LEVELS];
+
+    LeveledCompaction(@NotNull final LSMConfig config) {
+        this.config = config;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        final List<List<FileTable>> levels = new ArrayList<>(MAX_LEVELS);
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final FileTable table : files) {
+            // Tables of old stores may be left empty by purging, they have no key range to compact
+            if (!table.isEmpty()) {
+                levels.get(Math.min(table.getLevel(), MAX_LEVELS - 1)).add(table);
+            }
+        }
+
+        final List<FileTable> level0 = levels.get(0);
+        if (level0.size() >= config.getLevel0CompactionTrigger()) {
+            return pickLevel0(level0, levels.get(1));
+        }
+
+        int best = 0;
+        double bestScore = 1.0;
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            final double score = (double) sizeOf(levels.get(level)) / maxSize(level);
+            if (score >= bestScore) {
+                best = level;
+                bestScore = score;
+            }
+        }
+        return best == 0 ? null : pickLevel(best, levels.get(best), levels.get(best + 1));
+    }
+
+    /**
+     * Takes the oldest table of level 0 with all the level 0 tables overlapping it, since they may hold
+     * newer versions of its keys, and the overlapping tables of level 1.
+     */
+    @NotNull
+    private static Compaction pickLevel0(
+            @NotNull final List<FileTable> level0,
+            @NotNull final List<FileTable> level1) {
+        final List<FileTable> inputs = new ArrayList<>();
+        final FileTable oldest = level0.get(level0.size() - 1);
+        inputs.add(oldest);
+        ByteBuffer from = oldest.firstKey();
+        ByteBuffer to = oldest.lastKey();
+        boolean expanded = true;
+        while (expanded) {
+            expanded = false;
+            for (final FileTable table : level0) {
+                if (!inputs.contains(table) && table.overlaps(from, to)) {
+                    inputs.add(table);
+                    from = min(from, table.firstKey());
+                    to = max(to, table.lastKey());
+                    expanded = true;
+                }
+            }
+        }
+        for (final FileTable table : level1) {
+            if (table.overlaps(from, to)) {
+                inputs.add(table);
+            }
+        }
+        return Compaction.toLevel(ImmutableList.copyOf(inputs), 1);
+    }
+
+    /**
+     * Takes the most delete-heavy table of the level or the one following the previously compacted one,
+     * and the overlapping tables of the next level.
+     */
+    @NotNull
+    private Compaction pickLevel(
+            final int level,
+            @NotNull final List<FileTable> tables,
+            @NotNull final List<FileTable> next) {
+        final List<FileTable> sorted = new ArrayList<>(tables);
+        sorted.sort(Comparator.comparing(FileTable::firstKey));
+        FileTable chosen = sorted.get(0);
+        final ByteBuffer pointer = pointers[level];
+        if (pointer != null) {
+            for (final FileTable table : sorted) {
+                if (table.firstKey().compareTo(pointer) > 0) {
+                    chosen = table;
+                    break;
+                }
+            }
+        }
+        double bestRatio = config.getTombstoneCompactionRatio();
+        for (final FileTable table : sorted) {
+            final double ratio = table.tombstoneRatio();
+            if (ratio >= bestRatio) {
+                chosen = table;
+                bestRatio = ratio;
+            }
+        }
+        pointers[level] = chosen.lastKey();
+
+        final List<FileTable> inputs = new ArrayList<>();
+        inputs.add(chosen);
+        final ByteBuffer from = chosen.firstKey();
+        final ByteBuffer to = chosen.lastKey();
+        for (final FileTable table : next) {
+            if (table.overlaps(from, to)) {
+                inputs.add(table);
+            }
+        }
+        return Compaction.toLevel(ImmutableList.copyOf(inputs), level + 1);
+    }
+
+    private long maxSize(final int level) {
+        long size = config.getLevelBaseSize();
+        for (int i = 1; i < level; i++) {
+            size *= config.getLevelSizeMultiplier();
+        }
+        return size;
+    }
+
+    private static long sizeOf(@NotNull final List<FileTable> tables) {
+        long size = 0;
+        for (final FileTable table : tables) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    @NotNull
+    private static ByteBuffer min(
+            @NotNull final ByteBuffer a,
+            @NotNull final ByteBuffer b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    @NotNull
+    private static ByteBuffer max(
+            @NotNull final ByteBuffer a,
+            @NotNull final ByteBuffer b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
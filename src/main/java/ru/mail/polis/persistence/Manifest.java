@@ -0,0 +1,374 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Log of the changes of the {@link FileTable}s on disk, so that a restart learns the tables,
+ * their levels and key ranges without opening them.
+ * <p>
+ * Record is payload length (int), CRC32C of the payload (int) and the payload, which is a single edit:
+ * the number of removed tables (int) with their file names, then the number of added tables (int)
+ * with their file names, generations (int), levels (int), sizes (long), shares of tombstones (double),
+ * numbers of tombstone cells (long, -1 if unknown), first and last keys and whether the last keys are
+ * exclusive (byte, see {@link FileTable#overlaps}). File name is its length (int) and UTF-8 bytes,
+ * key is its length (int, -1 for an empty table) and bytes. Removals go first, so a table moved to another level is removed
+ * and added back.
+ * <p>
+ * A change is logged after its files are in place and before the replaced ones are deleted. Replay stops
+ * at the first incomplete or corrupted record, the change torn by a crash is lost as a whole.
+ * The log is rewritten as a single edit once it grows long, when it is closed and after a failed write,
+ * which may have left a torn record that would hide the following ones.
+ */
+final class Manifest implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+    static final String FILE_NAME = "MANIFEST";
+    private static final String TEMP = ".tmp";
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int MAX_EDITS = 1000;
+
+    private final File base;
+    // Guarded by this, by file names in the order they were added
+    private final Map<String, Entry> live = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int edits;
+    // The last write failed, the log has to be rewritten before appending
+    private boolean torn;
+
+    private Manifest(@NotNull final File base) {
+        this.base = base;
+    }
+
+    static boolean exists(@NotNull final File base) {
+        return new File(base, FILE_NAME).exists();
+    }
+
+    /**
+     * Replays the manifest left by the previous run.
+     *
+     * @param base folder with FileTable
+     * @throws IOException if an I/O error occurred or the edits are malformed
+     */
+    @NotNull
+    static Manifest open(@NotNull final File base) throws IOException {
+        final Manifest manifest = new Manifest(base);
+        final File file = new File(base, FILE_NAME);
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final CRC32C crc = new CRC32C();
+        while (data.remaining() >= HEADER) {
+            final int length = data.getInt(data.position());
+            if (length < 0 || length > data.remaining() - HEADER) {
+                break;
+            }
+            final ByteBuffer payload = data.duplicate();
+            payload.position(data.position() + HEADER).limit(data.position() + HEADER + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != data.getInt(data.position() + Integer.BYTES)) {
+                break;
+            }
+            manifest.replay(payload.slice());
+            data.position(payload.limit());
+        }
+        if (data.hasRemaining() || manifest.edits >= MAX_EDITS) {
+            if (data.hasRemaining()) {
+                log.warn("Ignoring {} bytes torn from the end of {}", data.remaining(), file);
+            }
+            manifest.rewrite(manifest.live.values());
+        } else {
+            manifest.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return manifest;
+    }
+
+    /**
+     * Starts the manifest of the tables found on disk.
+     *
+     * @param base   folder with FileTable
+     * @param tables tables to list
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    static Manifest create(
+            @NotNull final File base,
+            @NotNull final Collection<FileTable> tables) throws IOException {
+        final Manifest manifest = new Manifest(base);
+        for (final FileTable table : tables) {
+            final Entry entry = Entry.of(table);
+            manifest.live.put(entry.file, entry);
+        }
+        manifest.rewrite(manifest.live.values());
+        return manifest;
+    }
+
+    /**
+     * Tables listed by the manifest.
+     */
+    @NotNull
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Durably logs the replacement of the tables, both sides may be empty.
+     * The listed tables change only once the edit is on disk.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    synchronized void apply(
+            @NotNull final Collection<FileTable> removed,
+            @NotNull final Collection<FileTable> added) throws IOException {
+        final List<Entry> entries = new ArrayList<>(added.size());
+        for (final FileTable table : added) {
+            entries.add(Entry.of(table));
+        }
+        final List<String> names = new ArrayList<>(removed.size());
+        for (final FileTable table : removed) {
+            names.add(table.getPath().getFileName().toString());
+        }
+        if (torn || edits + 1 >= MAX_EDITS) {
+            final Map<String, Entry> next = new LinkedHashMap<>(live);
+            update(next, names, entries);
+            rewrite(next.values());
+        } else {
+            try {
+                write(channel, record(names, entries));
+                channel.force(false);
+            } catch (IOException e) {
+                torn = true;
+                throw e;
+            }
+            edits++;
+        }
+        update(live, names, entries);
+    }
+
+    private static void update(
+            @NotNull final Map<String, Entry> tables,
+            @NotNull final Collection<String> removed,
+            @NotNull final Collection<Entry> added) {
+        for (final String name : removed) {
+            tables.remove(name);
+        }
+        for (final Entry entry : added) {
+            tables.put(entry.file, entry);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (torn || edits > 1) {
+            rewrite(live.values());
+        }
+        channel.close();
+    }
+
+    private void replay(@NotNull final ByteBuffer payload) throws IOException {
+        try {
+            final int removed = payload.getInt();
+            for (int i = 0; i < removed; i++) {
+                live.remove(readName(payload));
+            }
+            final int added = payload.getInt();
+            for (int i = 0; i < added; i++) {
+                final String file = readName(payload);
+                final int generation = payload.getInt();
+                final int level = payload.getInt();
+                final long size = payload.getLong();
+                final double tombstoneRatio = payload.getDouble();
+                final long tombstones = payload.getLong();
+                final ByteBuffer firstKey = readKey(payload);
+                final ByteBuffer lastKey = readKey(payload);
+                final boolean lastKeyExclusive = payload.get() != 0;
+                live.put(file, new Entry(file, generation, level, size, tombstoneRatio, tombstones,
+                        firstKey, lastKey, lastKeyExclusive));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed edit of " + new File(base, FILE_NAME), e);
+        }
+        if (payload.hasRemaining()) {
+            throw new IOException(payload.remaining() + " unexpected bytes at the end of an edit of "
+                    + new File(base, FILE_NAME));
+        }
+        edits++;
+    }
+
+    /**
+     * Atomically replaces the log with a single edit adding the given tables.
+     */
+    private void rewrite(@NotNull final Collection<Entry> entries) throws IOException {
+        final File file = new File(base, FILE_NAME);
+        final File tmp = new File(base, FILE_NAME + TEMP);
+        try (FileChannel fc = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(fc, record(List.of(), entries));
+            fc.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        edits = 1;
+        torn = false;
+    }
+
+    @NotNull
+    private static ByteBuffer record(
+            @NotNull final Collection<String> removed,
+            @NotNull final Collection<Entry> added) {
+        int length = 2 * Integer.BYTES;
+        for (final String name : removed) {
+            length += Integer.BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        for (final Entry entry : added) {
+            length += entry.sizeInBytes();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        record.putInt(removed.size());
+        for (final String name : removed) {
+            putName(record, name);
+        }
+        record.putInt(added.size());
+        for (final Entry entry : added) {
+            putName(record, entry.file);
+            record.putInt(entry.generation);
+            record.putInt(entry.level);
+            record.putLong(entry.size);
+            record.putDouble(entry.tombstoneRatio);
+            record.putLong(entry.tombstones);
+            putKey(record, entry.firstKey);
+            putKey(record, entry.lastKey);
+            record.put((byte) (entry.lastKeyExclusive ? 1 : 0));
+        }
+        final CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.rewind();
+    }
+
+    private static void putName(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static void putKey(
+            @NotNull final ByteBuffer buffer,
+            @Nullable final ByteBuffer key) {
+        if (key == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(key.remaining()).put(key.duplicate());
+        }
+    }
+
+    @NotNull
+    private static String readName(@NotNull final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static ByteBuffer readKey(@NotNull final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void write(
+            @NotNull final FileChannel out,
+            @NotNull final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+
+    /**
+     * Table as listed by the manifest.
+     */
+    static final class Entry {
+        @NotNull
+        final String file;
+        final int generation;
+        final int level;
+        final long size;
+        final double tombstoneRatio;
+        final long tombstones;
+        @Nullable
+        final ByteBuffer firstKey;
+        @Nullable
+        final ByteBuffer lastKey;
+        final boolean lastKeyExclusive;
+
+        Entry(
+                @NotNull final String file,
+                final int generation,
+                final int level,
+                final long size,
+                final double tombstoneRatio,
+                final long tombstones,
+                @Nullable final ByteBuffer firstKey,
+                @Nullable final ByteBuffer lastKey,
+                final boolean lastKeyExclusive) {
+            this.file = file;
+            this.generation = generation;
+            this.level = level;
+            this.size = size;
+            this.tombstoneRatio = tombstoneRatio;
+            this.tombstones = tombstones;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.lastKeyExclusive = lastKeyExclusive;
+        }
+
+        @NotNull
+        static Entry of(@NotNull final FileTable table) {
+            final boolean empty = table.isEmpty();
+            return new Entry(
+                    table.getPath().getFileName().toString(),
+                    table.getGeneration(),
+                    table.getLevel(),
+                    table.sizeInBytes(),
+                    table.tombstoneRatio(),
+                    table.knownTombstones(),
+                    empty ? null : table.firstKey(),
+                    empty ? null : table.lastKey(),
+                    table.isLastKeyExclusive());
+        }
+
+        private int sizeInBytes() {
+            return 3 * Integer.BYTES + file.getBytes(StandardCharsets.UTF_8).length
+                    + 2 * Long.BYTES + Double.BYTES
+                    + Integer.BYTES + (firstKey == null ? 0 : firstKey.remaining())
+                    + Integer.BYTES + (lastKey == null ? 0 : lastKey.remaining())
+                    + Byte.BYTES;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Region of a file mapped as a sequence of buffers, since a single mapping can't exceed 2 GB.
+ * Slices within a segment share the mapped memory, the rare ones crossing a boundary are copied.
+ */
+final class MappedSegments {
+    private final ByteBuffer[] segments;
+    private final long segmentSize;
+    private final long start;
+    private final long length;
+
+    /**
+     * Maps the region of the file, the mapping stays valid after the channel is closed.
+     *
+     * @param fc          channel of the file
+     * @param start       offset of the region
+     * @param length      size of the region in bytes
+     * @param segmentSize maximum size of a single mapping in bytes
+     * @throws IOException if an I/O error occurred
+     */
+    MappedSegments(
+            @NotNull final FileChannel fc,
+            final long start,
+            final long length,
+            final int segmentSize) throws IOException {
+        this.start = start;
+        this.length = length;
+        this.segmentSize = segmentSize;
+        final int count = (int) ((length + segmentSize - 1) / segmentSize);
+        this.segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long offset = (long) i * segmentSize;
+            segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(segmentSize, length - offset));
+        }
+    }
+
+    /**
+     * Bytes of the file at the given position.
+     *
+     * @param position offset in the file
+     * @param size     number of bytes
+     * @return buffer positioned at 0 with the given limit
+     */
+    @NotNull
+    ByteBuffer slice(
+            final long position,
+            final int size) {
+        final long offset = position - start;
+        if (offset < 0 || offset + size > length) {
+            throw new IndexOutOfBoundsException("Slice " + position + "+" + size + " out of mapped region");
+        }
+        int segment = (int) (offset / segmentSize);
+        int inSegment = (int) (offset % segmentSize);
+        if (inSegment + size <= segments[segment].limit()) {
+            final ByteBuffer slice = segments[segment].duplicate();
+            slice.position(inSegment).limit(inSegment + size);
+            return slice.slice();
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(size);
+        while (copy.hasRemaining()) {
+            final ByteBuffer part = segments[segment].duplicate();
+            part.position(inSegment).limit(Math.min(part.limit(), inSegment + copy.remaining()));
+            copy.put(part);
+            segment++;
+            inSegment = 0;
+        }
+        return copy.flip();
+    }
+}
@@ -2,47 +2,182 @@ package ru.mail.polis.persistence;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public final class MemTable implements Table {
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long sizeInBytes;
+    private final ConcurrentNavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final List<RangeTombstone> rangeTombstones = new CopyOnWriteArrayList<>();
+    // Fragments of all the range tombstones, rebuilt by every removal of a range
+    private volatile RangeTombstones fragments = RangeTombstones.EMPTY;
 
     public long sizeInBytes() {
-        return sizeInBytes;
+        return sizeInBytes.get();
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return Iterators.transform(
-                map.tailMap(from).entrySet().iterator(),
-                e -> new Cell(e.getKey(), e.getValue()));
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterates cells of the versions visible at the given time.
+     *
+     * @param snapshot the greatest visible timestamp
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final long snapshot) {
+        return visible(map.tailMap(from).entrySet().iterator(), snapshot);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from) {
+        return descendingIterator(from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterates cells of the versions visible at the given time in descending order.
+     *
+     * @param snapshot the greatest visible timestamp
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            final long snapshot) {
+        return visible(map.headMap(from, true).descendingMap().entrySet().iterator(), snapshot);
+    }
+
+    /**
+     * Cells of the versions visible at the given time, skipping the keys having no such version.
+     */
+    @NotNull
+    private static Iterator<Cell> visible(
+            @NotNull final Iterator<Map.Entry<ByteBuffer, Value>> entries,
+            final long snapshot) {
+        final Iterator<Cell> cells = Iterators.transform(entries, e -> {
+            final Value value = e.getValue().visibleAt(snapshot);
+            return value == null ? null : new Cell(e.getKey(), value);
+        });
+        return Iterators.filter(cells, Objects::nonNull);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Looks up the version of the key visible at the given time.
+     *
+     * @param snapshot the greatest visible timestamp
+     */
+    @Nullable
+    Cell get(
+            @NotNull final ByteBuffer key,
+            final long snapshot) {
+        final Value value = map.get(key);
+        final Value visible = value == null ? null : value.visibleAt(snapshot);
+        return visible == null ? null : new Cell(key, visible);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes += key.remaining() + value.remaining()+ Long.BYTES;
-        } else if (previous.isRemoved()) {
-            sizeInBytes += value.remaining() + Long.BYTES;
-        } else {
-            sizeInBytes += value.remaining() + Long.BYTES - previous.getData().remaining();
-        }
+        put(key, Value.of(value));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes += key.remaining();
-        } else if (!previous.isRemoved()) {
-            sizeInBytes -= previous.getData().remaining();
+        put(key, Value.tombstone());
+    }
+
+    /**
+     * Stores the value, see {@link #put(ByteBuffer, Value, boolean)}.
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        put(key, value, false);
+    }
+
+    /**
+     * Stores the value unless a newer one is already there, so that concurrent writers
+     * of the same key agree with the timestamp order used when merging tables.
+     * A value of a pending batch keeps the replaced one visible until the batch is committed.
+     *
+     * @param keepShadowed whether the replaced value is kept for the open snapshots
+     */
+    void put(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final boolean keepShadowed) {
+        while (true) {
+            final Value previous = map.get(key);
+            if (previous == null) {
+                if (map.putIfAbsent(key, value) == null) {
+                    sizeInBytes.addAndGet(key.remaining() + sizeOf(value));
+                    return;
+                }
+            } else if (previous.getTimeStamp() > value.getTimeStamp()) {
+                return;
+            } else if (keepShadowed || value.isPending()) {
+                if (map.replace(key, previous, value.over(previous))) {
+                    sizeInBytes.addAndGet(sizeOf(value));
+                    return;
+                }
+            } else if (map.replace(key, previous, value)) {
+                sizeInBytes.addAndGet(sizeOf(value) - sizeOf(previous));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stores the range tombstone, removals of ranges are rare enough to rebuild the fragments every time.
+     */
+    void removeRange(@NotNull final RangeTombstone tombstone) {
+        synchronized (rangeTombstones) {
+            rangeTombstones.add(tombstone);
+            fragments = RangeTombstones.of(rangeTombstones);
+        }
+        sizeInBytes.addAndGet(tombstone.sizeInBytes());
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return fragments;
+    }
+
+    /**
+     * Range tombstones visible at the given time.
+     *
+     * @param snapshot the greatest visible timestamp
+     */
+    @NotNull
+    RangeTombstones rangeTombstones(final long snapshot) {
+        if (snapshot == Long.MAX_VALUE) {
+            return fragments;
         }
+        return RangeTombstones.of(rangeTombstones.stream()
+                .filter(t -> t.getTimeStamp() <= snapshot)
+                .collect(Collectors.toList()));
+    }
+
+    private static long sizeOf(@NotNull final Value value) {
+        return value.isRemoved() ? 0L : value.getData().remaining() + Long.BYTES;
     }
 }
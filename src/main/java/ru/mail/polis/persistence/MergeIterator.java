@@ -0,0 +1,174 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted iterators of cells leaving only the newest cell of every key.
+ * The iterators go either in ascending or in descending order of keys.
+ * <p>
+ * The sources go from the newest to the oldest one, so of the cells with equal keys the one
+ * of the source with the lowest index wins. The heads of the sources are arranged in a loser tree:
+ * every inner node keeps the source that lost the match there, so replacing the head of the winner
+ * takes a single path of log(k) comparisons from its leaf to the root.
+ * <p>
+ * Cells removed by newer {@link RangeTombstones} are skipped, the range tombstones stand for them.
+ * The skipped cells and the shadowed versions are counted in {@link ReadStats} if they are given.
+ */
+final class MergeIterator implements Iterator<Cell> {
+    // Indexed by the leaves of the tree
+    private final List<Iterator<Cell>> sources;
+    private final Cell[] heads;
+    // Index 0 keeps the winner, the others the losers of the matches in the inner nodes
+    private final int[] tree;
+    // 1 for ascending and -1 for descending order
+    private final int order;
+    private final RangeTombstones rangeTombstones;
+    private final boolean dropTombstones;
+    @Nullable
+    private final ReadStats stats;
+    private Cell next;
+
+    /**
+     * Creates the merge.
+     *
+     * @param sources         sorted iterators from the newest to the oldest one
+     * @param rangeTombstones range tombstones of all the sources
+     * @param descending      whether the iterators go in descending order of keys
+     * @param dropTombstones  whether removed cells are skipped after they shadowed the older ones
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Cell>> sources,
+            @NotNull final RangeTombstones rangeTombstones,
+            final boolean descending,
+            final boolean dropTombstones) {
+        this(sources, rangeTombstones, descending, dropTombstones, null);
+    }
+
+    /**
+     * Creates the merge counting the skipped cells.
+     *
+     * @param stats counts of the iterator or null
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Cell>> sources,
+            @NotNull final RangeTombstones rangeTombstones,
+            final boolean descending,
+            final boolean dropTombstones,
+            @Nullable final ReadStats stats) {
+        final int count = sources.size();
+        this.sources = new ArrayList<>(sources);
+        this.heads = new Cell[count];
+        this.tree = new int[Math.max(count, 1)];
+        this.order = descending ? -1 : 1;
+        this.rangeTombstones = rangeTombstones;
+        this.dropTombstones = dropTombstones;
+        this.stats = stats;
+        for (int i = 0; i < count; i++) {
+            heads[i] = this.sources.get(i).hasNext() ? this.sources.get(i).next() : null;
+        }
+        if (count > 0) {
+            // Leaves of the complete binary tree are count..2*count-1, play the matches bottom-up
+            final int[] winners = new int[2 * count];
+            for (int i = 0; i < count; i++) {
+                winners[count + i] = i;
+            }
+            for (int node = count - 1; node > 0; node--) {
+                final int left = winners[2 * node];
+                final int right = winners[2 * node + 1];
+                if (beats(left, right)) {
+                    winners[node] = left;
+                    tree[node] = right;
+                } else {
+                    winners[node] = right;
+                    tree[node] = left;
+                }
+            }
+            tree[0] = count == 1 ? 0 : winners[1];
+        }
+        this.next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        final Cell result = next;
+        next = advance();
+        return result;
+    }
+
+    /**
+     * Takes the newest cell of the next key and skips the older cells of the key.
+     *
+     * @return the cell or null if the sources are exhausted
+     */
+    private Cell advance() {
+        while (heads.length > 0) {
+            final Cell cell = heads[tree[0]];
+            if (cell == null) {
+                return null;
+            }
+            pop();
+            while (heads[tree[0]] != null && heads[tree[0]].key().equals(cell.key())) {
+                pop();
+                if (stats != null) {
+                    stats.addDuplicateCollapsed();
+                }
+            }
+            if (!rangeTombstones.covers(cell) && (!dropTombstones || !cell.getValue().isRemoved())) {
+                return cell;
+            }
+            if (stats != null) {
+                stats.addTombstoneSkipped();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the head of the winner with the next cell of its source and replays its path to the root.
+     */
+    private void pop() {
+        int winner = tree[0];
+        final Iterator<Cell> source = sources.get(winner);
+        heads[winner] = source.hasNext() ? source.next() : null;
+        for (int node = (winner + heads.length) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                final int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Whether the head of the first source goes before the head of the second one, exhausted sources go last.
+     */
+    private boolean beats(
+            final int first,
+            final int second) {
+        final Cell a = heads[first];
+        final Cell b = heads[second];
+        if (a == null) {
+            return false;
+        }
+        if (b == null) {
+            return true;
+        }
+        final int cmp = order * a.key().compareTo(b.key());
+        return cmp < 0 || cmp == 0 && first < second;
+    }
+}
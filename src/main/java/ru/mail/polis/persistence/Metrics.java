@@ -0,0 +1,176 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of an {@link LSMDao}. Disabled metrics skip even taking the time,
+ * so an operation only pays for checking a final field.
+ */
+public final class Metrics implements MetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    /**
+     * Timed operations. A get includes writing the value by {@link LSMDao#getTo} and {@link LSMDao#getStream}.
+     * The time of an iterator is the time to open it, that is to seek all the tables, not the time of the scan.
+     */
+    public enum Operation {
+        UPSERT, REMOVE, GET, ITERATOR, FLUSH, COMPACT
+    }
+
+    /**
+     * Counters of flushes and compactions, the {@link ReadStats} summed over the exhausted iterators
+     * and the results of {@link LSMDao#scrub()}.
+     */
+    public enum Counter {
+        FLUSHES, FLUSHED_BYTES, COMPACTIONS, COMPACTION_BYTES_IN, COMPACTION_BYTES_OUT,
+        READ_TABLES, READ_INDEX_PROBES, READ_BLOCKS, READ_CELLS, READ_TOMBSTONES_SKIPPED, READ_DUPLICATES_COLLAPSED,
+        SCRUBBED_TABLES, CORRUPTED_TABLES, CORRUPTED_BLOCKS
+    }
+
+    private final boolean enabled;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+    Metrics(final boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an operation.
+     *
+     * @return the start time to pass to {@link #record}
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    void record(
+            @NotNull final Operation operation,
+            final long start) {
+        if (!enabled) {
+            return;
+        }
+        final long nanos = System.nanoTime() - start;
+        latencies[operation.ordinal()].record(nanos);
+        for (final MetricsListener listener : listeners) {
+            try {
+                listener.onOperation(operation, nanos);
+            } catch (RuntimeException e) {
+                log.warn("Metrics listener failed", e);
+            }
+        }
+    }
+
+    void add(
+            @NotNull final Counter counter,
+            final long delta) {
+        if (!enabled) {
+            return;
+        }
+        counters[counter.ordinal()].add(delta);
+        for (final MetricsListener listener : listeners) {
+            try {
+                listener.onCounter(counter, delta);
+            } catch (RuntimeException e) {
+                log.warn("Metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the counts of an exhausted iterator.
+     */
+    void add(@NotNull final ReadStats stats) {
+        add(Counter.READ_TABLES, stats.getTables());
+        add(Counter.READ_INDEX_PROBES, stats.getIndexProbes());
+        add(Counter.READ_BLOCKS, stats.getBlocks());
+        add(Counter.READ_CELLS, stats.getCells());
+        add(Counter.READ_TOMBSTONES_SKIPPED, stats.getTombstonesSkipped());
+        add(Counter.READ_DUPLICATES_COLLAPSED, stats.getDuplicatesCollapsed());
+    }
+
+    /**
+     * Registers the gauge, it is only evaluated when read.
+     */
+    void gauge(
+            @NotNull final String name,
+            @NotNull final LongSupplier value) {
+        if (enabled) {
+            gauges.put(name, value);
+        }
+    }
+
+    public void addListener(@NotNull final MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull final MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    public long count(@NotNull final Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    @NotNull
+    public LatencyHistogram latency(@NotNull final Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * Current value of the gauge or 0 if there is no such gauge.
+     */
+    public long gauge(@NotNull final String name) {
+        final LongSupplier value = gauges.get(name);
+        return value == null ? 0L : value.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> result = new TreeMap<>();
+        for (final Counter counter : Counter.values()) {
+            result.put(counter.name(), count(counter));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        final Map<String, Long> result = new TreeMap<>();
+        for (final Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            result.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Summary> getLatencies() {
+        final Map<String, LatencyHistogram.Summary> result = new TreeMap<>();
+        for (final Operation operation : Operation.values()) {
+            result.put(operation.name(), latency(operation).summary());
+        }
+        return result;
+    }
+}
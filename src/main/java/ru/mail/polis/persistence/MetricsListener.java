@@ -0,0 +1,27 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the measurements of {@link Metrics} as they are taken, e.g. to export them to a monitoring system.
+ * Called on the threads doing the work, so implementations should be fast and thread-safe.
+ */
+public interface MetricsListener {
+    /**
+     * An operation finished.
+     *
+     * @param nanos how long it took
+     */
+    void onOperation(
+            @NotNull Metrics.Operation operation,
+            long nanos);
+
+    /**
+     * A counter was increased.
+     */
+    default void onCounter(
+            @NotNull final Metrics.Counter counter,
+            final long delta) {
+        // Not interested
+    }
+}
@@ -0,0 +1,23 @@
+package ru.mail.polis.persistence;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}, registered as {@code ru.mail.polis:type=LSMDao,path=<data folder>}.
+ */
+public interface MetricsMXBean {
+    /**
+     * Values of the {@link Metrics.Counter}s by their names.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Current values of the gauges by their names.
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * Latencies of the {@link Metrics.Operation}s by their names.
+     */
+    Map<String, LatencyHistogram.Summary> getLatencies();
+}
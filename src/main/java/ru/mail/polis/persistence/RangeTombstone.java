@@ -0,0 +1,44 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of all the keys from "from" (inclusive) to "to" (exclusive) written before the tombstone.
+ */
+final class RangeTombstone {
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long ts;
+
+    RangeTombstone(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long ts) {
+        this.from = from;
+        this.to = to;
+        this.ts = ts;
+    }
+
+    @NotNull
+    ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getTo() {
+        return to.asReadOnlyBuffer();
+    }
+
+    long getTimeStamp() {
+        return ts;
+    }
+
+    /**
+     * Approximate memory taken by the tombstone in a memTable.
+     */
+    long sizeInBytes() {
+        return from.remaining() + to.remaining() + Long.BYTES;
+    }
+}
@@ -0,0 +1,262 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * {@link RangeTombstone}s cut into non-overlapping fragments sorted by keys. Every fragment keeps
+ * the greatest timestamp of the tombstones covering it, so a key is looked up with a binary search.
+ * <p>
+ * Serialized as the number of fragments (int) followed by "from" length (varint), "from",
+ * "to" length (varint), "to" and timestamp (long) of every fragment.
+ */
+final class RangeTombstones {
+    static final RangeTombstones EMPTY = new RangeTombstones(new ArrayList<>());
+
+    private final ByteBuffer[] starts;
+    private final ByteBuffer[] ends;
+    private final long[] timestamps;
+
+    private RangeTombstones(@NotNull final List<RangeTombstone> fragments) {
+        final int count = fragments.size();
+        this.starts = new ByteBuffer[count];
+        this.ends = new ByteBuffer[count];
+        this.timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            final RangeTombstone fragment = fragments.get(i);
+            starts[i] = fragment.getFrom();
+            ends[i] = fragment.getTo();
+            timestamps[i] = fragment.getTimeStamp();
+        }
+    }
+
+    /**
+     * Cuts possibly overlapping tombstones into fragments.
+     */
+    @NotNull
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return EMPTY;
+        }
+        final TreeSet<ByteBuffer> bounds = new TreeSet<>();
+        final List<RangeTombstone> byStart = new ArrayList<>(tombstones);
+        for (final RangeTombstone tombstone : byStart) {
+            bounds.add(tombstone.getFrom());
+            bounds.add(tombstone.getTo());
+        }
+        byStart.sort(Comparator.comparing(RangeTombstone::getFrom));
+
+        // Sweep the bounds keeping the tombstones started so far, the newest on top
+        final PriorityQueue<RangeTombstone> active =
+                new PriorityQueue<>(Comparator.comparingLong(RangeTombstone::getTimeStamp).reversed());
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        int next = 0;
+        ByteBuffer lower = null;
+        for (final ByteBuffer bound : bounds) {
+            if (lower != null) {
+                while (next < byStart.size() && byStart.get(next).getFrom().compareTo(lower) <= 0) {
+                    active.add(byStart.get(next++));
+                }
+                while (!active.isEmpty() && active.peek().getTo().compareTo(lower) <= 0) {
+                    active.poll();
+                }
+                if (!active.isEmpty()) {
+                    add(fragments, new RangeTombstone(lower, bound, active.peek().getTimeStamp()));
+                }
+            }
+            lower = bound;
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    /**
+     * Adds the fragment joining it with the previous one if they are adjacent and equally old.
+     */
+    private static void add(
+            @NotNull final List<RangeTombstone> fragments,
+            @NotNull final RangeTombstone fragment) {
+        final int last = fragments.size() - 1;
+        if (last >= 0) {
+            final RangeTombstone previous = fragments.get(last);
+            if (previous.getTimeStamp() == fragment.getTimeStamp()
+                    && previous.getTo().equals(fragment.getFrom())) {
+                fragments.set(last, new RangeTombstone(previous.getFrom(), fragment.getTo(), fragment.getTimeStamp()));
+                return;
+            }
+        }
+        fragments.add(fragment);
+    }
+
+    /**
+     * Combines the tombstones of several tables.
+     */
+    @NotNull
+    static RangeTombstones merge(@NotNull final Collection<RangeTombstones> sets) {
+        RangeTombstones single = EMPTY;
+        final List<RangeTombstone> all = new ArrayList<>();
+        for (final RangeTombstones set : sets) {
+            if (!set.isEmpty()) {
+                single = all.isEmpty() ? set : null;
+                all.addAll(set.fragments());
+            }
+        }
+        return single != null ? single : of(all);
+    }
+
+    boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    /**
+     * Number of fragments.
+     */
+    int size() {
+        return starts.length;
+    }
+
+    /**
+     * The fragments matching the predicate.
+     */
+    @NotNull
+    RangeTombstones filter(@NotNull final Predicate<RangeTombstone> predicate) {
+        final List<RangeTombstone> kept = new ArrayList<>();
+        for (final RangeTombstone fragment : fragments()) {
+            if (predicate.test(fragment)) {
+                kept.add(fragment);
+            }
+        }
+        return kept.size() == starts.length ? this : new RangeTombstones(kept);
+    }
+
+    @NotNull
+    List<RangeTombstone> fragments() {
+        final List<RangeTombstone> fragments = new ArrayList<>(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            fragments.add(new RangeTombstone(starts[i], ends[i], timestamps[i]));
+        }
+        return fragments;
+    }
+
+    /**
+     * The greatest timestamp of the tombstones covering the key or {@link Long#MIN_VALUE} if there are none.
+     */
+    long deletedAt(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = starts.length - 1;
+        // Find the last fragment starting not after the key
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            if (starts[mid].compareTo(key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right >= 0 && ends[right].compareTo(key) > 0 ? timestamps[right] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Whether the cell was written before a tombstone covering its key.
+     */
+    boolean covers(@NotNull final Cell cell) {
+        return starts.length > 0 && deletedAt(cell.key()) > cell.getValue().getTimeStamp();
+    }
+
+    /**
+     * The fragments within the range cut at its bounds.
+     *
+     * @param from the lower bound (inclusive) or null for no bound
+     * @param to   the upper bound (exclusive) or null for no bound
+     */
+    @NotNull
+    RangeTombstones clip(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (from == null && to == null) {
+            return this;
+        }
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+            final ByteBuffer start = from != null && starts[i].compareTo(from) < 0 ? from : starts[i];
+            final ByteBuffer end = to != null && ends[i].compareTo(to) > 0 ? to : ends[i];
+            if (start.compareTo(end) < 0) {
+                fragments.add(new RangeTombstone(start, end, timestamps[i]));
+            }
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    /**
+     * The lower bound of the first fragment.
+     */
+    @NotNull
+    ByteBuffer first() {
+        return starts[0].duplicate();
+    }
+
+    /**
+     * The upper bound (exclusive) of the last fragment.
+     */
+    @NotNull
+    ByteBuffer last() {
+        return ends[ends.length - 1].duplicate();
+    }
+
+    int sizeInBytes() {
+        int size = Integer.BYTES;
+        for (int i = 0; i < starts.length; i++) {
+            size += Bytes.varIntSize(starts[i].remaining()) + starts[i].remaining()
+                    + Bytes.varIntSize(ends[i].remaining()) + ends[i].remaining() + Long.BYTES;
+        }
+        return size;
+    }
+
+    @NotNull
+    ByteBuffer toBuffer() {
+        final ByteBuffer result = ByteBuffer.allocate(sizeInBytes());
+        result.putInt(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            Bytes.putVarInt(result, starts[i].remaining());
+            result.put(starts[i].duplicate());
+            Bytes.putVarInt(result, ends[i].remaining());
+            result.put(ends[i].duplicate());
+            result.putLong(timestamps[i]);
+        }
+        return result.flip();
+    }
+
+    /**
+     * Reads the fragments serialized by {@link #toBuffer()}, the keys stay in the given buffer.
+     */
+    @NotNull
+    static RangeTombstones read(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer in = buffer.duplicate();
+        final int count = in.getInt();
+        final List<RangeTombstone> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer from = slice(in, Bytes.getVarInt(in));
+            final ByteBuffer to = slice(in, Bytes.getVarInt(in));
+            fragments.add(new RangeTombstone(from, to, in.getLong()));
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer in,
+            final int length) {
+        final ByteBuffer key = in.duplicate();
+        key.limit(key.position() + length);
+        in.position(in.position() + length);
+        return key.slice();
+    }
+}
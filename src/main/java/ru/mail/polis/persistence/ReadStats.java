@@ -0,0 +1,90 @@
+package ru.mail.polis.persistence;
+
+/**
+ * Read amplification of a single iterator: how much work the tables did to produce its records.
+ * The counts grow as the iterator goes, they are not thread-safe as the iterator itself.
+ */
+public final class ReadStats {
+    private long tables;
+    private long indexProbes;
+    private long blocks;
+    private long cells;
+    private long tombstonesSkipped;
+    private long duplicatesCollapsed;
+
+    void addTable() {
+        tables++;
+    }
+
+    void addIndexProbes(final int probes) {
+        indexProbes += probes;
+    }
+
+    void addBlock() {
+        blocks++;
+    }
+
+    void addCell() {
+        cells++;
+    }
+
+    void addTombstoneSkipped() {
+        tombstonesSkipped++;
+    }
+
+    void addDuplicateCollapsed() {
+        duplicatesCollapsed++;
+    }
+
+    /**
+     * Number of {@link FileTable}s merged by the iterator.
+     */
+    public long getTables() {
+        return tables;
+    }
+
+    /**
+     * Number of keys compared by binary searches in the table indexes and the restart points of the blocks.
+     */
+    public long getIndexProbes() {
+        return indexProbes;
+    }
+
+    /**
+     * Number of data blocks taken from the cache or read from the files.
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Number of cells decoded from the tables, including the ones passed while seeking the first key.
+     */
+    public long getCells() {
+        return cells;
+    }
+
+    /**
+     * Number of tombstones and cells covered by range tombstones left out of the records.
+     */
+    public long getTombstonesSkipped() {
+        return tombstonesSkipped;
+    }
+
+    /**
+     * Number of older versions of the keys shadowed by the newer ones.
+     */
+    public long getDuplicatesCollapsed() {
+        return duplicatesCollapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "tables=" + tables
+                + " indexProbes=" + indexProbes
+                + " blocks=" + blocks
+                + " cells=" + cells
+                + " tombstonesSkipped=" + tombstonesSkipped
+                + " duplicatesCollapsed=" + duplicatesCollapsed;
+    }
+}
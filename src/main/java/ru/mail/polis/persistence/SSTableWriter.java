@@ -0,0 +1,254 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Streams sorted cells to a file in the block format read by {@link BlockTableReader}.
+ * <p>
+ * Block headers, blocks, the Bloom filter, the index, the range tombstones and the footer are assembled
+ * in a large direct buffer reused by all the tables written by the thread, so a flush takes a few large writes
+ * instead of a couple of small ones per block. Payloads not fitting the buffer go with it in a gathering write.
+ * Checksums are taken from the heap and compressed buffers before they are copied to the output one.
+ */
+final class SSTableWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final FileChannel fc;
+    private final ByteBuffer out;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final int blockSize;
+    private final Compression compression;
+    private final BlockCodec codec;
+    private final BlockBuilder block;
+    private final BloomFilter.Builder bloomFilter;
+    private final CRC32C checksum = new CRC32C();
+    // Compression id and original length of the block being written
+    private final ByteBuffer header = ByteBuffer.allocate(1 + Integer.BYTES);
+    // Serialized index entries: separator length (varint) | separator | block offset | block length
+    private ByteBuffer index = ByteBuffer.allocate(4 * 1024);
+    private int blocks;
+    private long blockOffset;
+    private int blockLength;
+    // Bytes written to the file or waiting in the output buffer
+    private long offset;
+    private long rows;
+    private long tombstones;
+    // Last key of the written block waiting for the first key of the next one
+    private byte[] pendingKey;
+
+    /**
+     * Creates the file, which must not exist.
+     *
+     * @param file   table file
+     * @param config block size, compression and Bloom filter parameters
+     * @throws IOException if an I/O error occurred
+     */
+    SSTableWriter(
+            @NotNull final File file,
+            @NotNull final LSMConfig config) throws IOException {
+        this.fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.out = BUFFERS.get();
+        this.out.clear();
+        this.blockSize = config.getBlockSize();
+        this.compression = config.getCompression();
+        this.codec = compression.codec();
+        this.block = new BlockBuilder(blockSize);
+        final int bloomBitsPerKey = config.getBloomBitsPerKey();
+        this.bloomFilter = bloomBitsPerKey > 0 ? new BloomFilter.Builder(bloomBitsPerKey) : null;
+    }
+
+    /**
+     * Appends the cell, its key must be greater than the keys of the previous ones.
+     */
+    void add(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        if (pendingKey != null) {
+            addIndexEntry(Bytes.separator(pendingKey, key));
+            pendingKey = null;
+        }
+        if (bloomFilter != null) {
+            bloomFilter.add(key);
+        }
+        block.add(cell);
+        rows++;
+        if (cell.getValue().isRemoved()) {
+            tombstones++;
+        }
+        if (block.sizeInBytes() >= blockSize) {
+            pendingKey = block.lastKey();
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the last block, the Bloom filter, the index, the range tombstones and the footer
+     * and forces them to disk.
+     */
+    void finish(@NotNull final RangeTombstones rangeTombstones) throws IOException {
+        if (!block.isEmpty()) {
+            pendingKey = block.lastKey();
+            writeBlock();
+        }
+        if (pendingKey != null) {
+            addIndexEntry(Bytes.successor(pendingKey));
+            pendingKey = null;
+        }
+
+        // Bloom filter, the index and the range tombstones share a checksum
+        checksum.reset();
+        final long bloomOffset = offset;
+        int bloomLength = 0;
+        if (bloomFilter != null) {
+            final ByteBuffer filter = bloomFilter.build().toBuffer();
+            bloomLength = filter.remaining();
+            checksum.update(filter.duplicate());
+            write(filter);
+        }
+
+        // Index
+        final long indexOffset = offset;
+        final int indexLength = Integer.BYTES + index.position();
+        final ByteBuffer count = ByteBuffer.allocate(Integer.BYTES).putInt(0, blocks);
+        checksum.update(count.duplicate());
+        write(count);
+        index.flip();
+        checksum.update(index.duplicate());
+        write(index);
+
+        // Range tombstones
+        final long rangeOffset = offset;
+        final ByteBuffer ranges = rangeTombstones.toBuffer();
+        final int rangeLength = ranges.remaining();
+        checksum.update(ranges.duplicate());
+        write(ranges);
+
+        // Footer
+        final ByteBuffer footer = ByteBuffer.allocate(BlockTableReader.FOOTER_SIZE);
+        footer.putLong(indexOffset);
+        footer.putInt(indexLength);
+        footer.putLong(bloomOffset);
+        footer.putInt(bloomLength);
+        footer.putLong(rows);
+        footer.putLong(rangeOffset);
+        footer.putInt(rangeLength);
+        footer.putLong(tombstones);
+        footer.putInt((int) checksum.getValue());
+        // The footer checksum covers everything but itself, the version and the magic included
+        final int fields = footer.position();
+        footer.putInt(fields + Integer.BYTES, BlockTableReader.VERSION);
+        footer.putInt(fields + 2 * Integer.BYTES, BlockTableReader.MAGIC);
+        checksum.reset();
+        checksum.update(footer.array(), 0, fields);
+        checksum.update(footer.array(), fields + Integer.BYTES, 2 * Integer.BYTES);
+        footer.putInt((int) checksum.getValue());
+        footer.position(footer.limit());
+        footer.flip();
+        write(footer);
+        drain();
+        // The table replaces the write-ahead log or the compacted tables
+        fc.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+
+    /**
+     * Writes the block compressed unless compression saves less than 1/8 of it, followed by the checksum.
+     */
+    private void writeBlock() throws IOException {
+        final ByteBuffer data = block.finish();
+        final int length = data.remaining();
+        final long start = offset;
+        ByteBuffer stored = data;
+        header.clear();
+        if (codec == null) {
+            header.put(Compression.NONE.id());
+        } else {
+            final ByteBuffer compressed = codec.compress(data);
+            if (compressed.remaining() + Integer.BYTES < length - length / 8) {
+                header.put(compression.id()).putInt(length);
+                stored = compressed;
+            } else {
+                header.put(Compression.NONE.id());
+            }
+        }
+        header.flip();
+        checksum.reset();
+        checksum.update(header.array(), 0, header.limit());
+        checksum.update(stored.duplicate());
+        write(header);
+        write(stored);
+        reserve(Integer.BYTES);
+        out.putInt((int) checksum.getValue());
+        offset += Integer.BYTES;
+        blockOffset = start;
+        blockLength = (int) (offset - start);
+        blocks++;
+        block.reset();
+    }
+
+    /**
+     * Adds the index entry of the last written block, whose separator is known only after the next key.
+     */
+    private void addIndexEntry(@NotNull final byte[] separator) {
+        final int size = Bytes.varIntSize(separator.length) + separator.length + Long.BYTES + Integer.BYTES;
+        if (index.remaining() < size) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(index.capacity() * 2, index.position() + size));
+            index.flip();
+            grown.put(index);
+            index = grown;
+        }
+        Bytes.putVarInt(index, separator.length);
+        index.put(separator);
+        index.putLong(blockOffset);
+        index.putInt(blockLength);
+    }
+
+    /**
+     * Makes room for a small record in the output buffer.
+     */
+    private void reserve(final int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer to the file.
+     */
+    private void write(@NotNull final ByteBuffer data) throws IOException {
+        offset += data.remaining();
+        if (data.remaining() <= out.remaining()) {
+            out.put(data);
+            return;
+        }
+        out.flip();
+        gather[0] = out;
+        gather[1] = data;
+        while (data.hasRemaining()) {
+            fc.write(gather);
+        }
+        gather[1] = null;
+        out.clear();
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            fc.write(out);
+        }
+        out.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis.persistence;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges groups of similarly sized level 0 tables once there are
+ * {@link LSMConfig#getSizeTieredMinThreshold()} of them, so the number of tables grows
+ * logarithmically with the amount of data.
+ * <p>
+ * Lookups take the first version of a key found in generation order, so only tables of consecutive
+ * generations are merged and the result takes the place of the newest of them.
+ * <p>
+ * Groups with a share of tombstones of at least {@link LSMConfig#getTombstoneCompactionRatio()}
+ * are merged first, the most delete-heavy of them before the others.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    /**
+     * Tables whose size differs from the average size of the group by more than these factors start a new group.
+     */
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+    /**
+     * Tables smaller than this are similar to each other whatever their sizes are.
+     */
+    private final long smallTableSize;
+    private final double tombstoneRatio;
+
+    SizeTieredCompaction(@NotNull final LSMConfig config) {
+        this.tombstoneRatio = config.getTombstoneCompactionRatio();
+        this.minThreshold = config.getSizeTieredMinThreshold();
+        this.maxThreshold = config.getSizeTieredMaxThreshold();
+        this.smallTableSize = config.getFlushThreshold();
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        // Oldest first
+        final List<FileTable> level0 = new ArrayList<>();
+        for (final FileTable table : files) {
+            if (table.getLevel() == 0) {
+                level0.add(0, table);
+            }
+        }
+
+        List<FileTable> best = null;
+        double bestAverage = Double.MAX_VALUE;
+        List<FileTable> deleteHeavy = null;
+        double bestRatio = tombstoneRatio;
+        int start = 0;
+        while (start < level0.size()) {
+            long total = level0.get(start).sizeInBytes();
+            int end = start + 1;
+            while (end < level0.size() && end - start < maxThreshold
+                    && similar(level0.get(end).sizeInBytes(), (double) total / (end - start))) {
+                total += level0.get(end).sizeInBytes();
+                end++;
+            }
+            final double average = (double) total / (end - start);
+            // Smaller groups are cheaper to merge and hold the hottest data
+            if (end - start >= minThreshold) {
+                final List<FileTable> group = level0.subList(start, end);
+                if (average < bestAverage) {
+                    best = group;
+                    bestAverage = average;
+                }
+                final double ratio = tombstoneRatio(group);
+                if (ratio >= bestRatio) {
+                    deleteHeavy = group;
+                    bestRatio = ratio;
+                }
+            }
+            start = end;
+        }
+        if (deleteHeavy != null) {
+            best = deleteHeavy;
+        }
+        return best == null ? null : Compaction.inPlace(ImmutableList.copyOf(best));
+    }
+
+    private static double tombstoneRatio(@NotNull final List<FileTable> group) {
+        double ratio = 0;
+        long size = 0;
+        for (final FileTable table : group) {
+            ratio += table.tombstoneRatio() * table.sizeInBytes();
+            size += table.sizeInBytes();
+        }
+        return size == 0 ? 0.0 : ratio / size;
+    }
+
+    private boolean similar(
+            final long size,
+            final double average) {
+        if (size < smallTableSize && average < smallTableSize) {
+            return true;
+        }
+        return size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH;
+    }
+}
@@ -0,0 +1,20 @@
+package ru.mail.polis.persistence;
+
+/**
+ * When the write-ahead log is forced to disk.
+ */
+public enum SyncPolicy {
+    /**
+     * Every write returns once it is on disk, concurrent writers share the fsync.
+     */
+    ALWAYS,
+    /**
+     * The log is forced every {@link LSMConfig#getWalSyncInterval()} milliseconds,
+     * a crash of the machine may lose the writes of the last interval.
+     */
+    PERIODIC,
+    /**
+     * The log is left to the operating system, only a crash of the process is survived.
+     */
+    NEVER
+}
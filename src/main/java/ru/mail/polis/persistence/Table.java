@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public interface Table {
     long sizeInBytes();
@@ -12,6 +13,26 @@ public interface Table {
     @NotNull
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Iterates cells in descending order starting at "from" key (inclusive).
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Looks up a single key.
+     *
+     * @return the cell of the key (possibly a tombstone) or null if the table has no such key
+     */
+    @Nullable
+    Cell get(@NotNull ByteBuffer key) throws IOException;
+
+    /**
+     * Range tombstones of the table, they remove the older cells of this and the other tables.
+     */
+    @NotNull
+    RangeTombstones rangeTombstones();
+
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
 
     void remove(@NotNull ByteBuffer key) throws IOException;
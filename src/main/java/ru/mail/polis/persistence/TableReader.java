@@ -0,0 +1,77 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Reads one of the on-disk formats of {@link FileTable}.
+ */
+interface TableReader {
+    long rows();
+
+    /**
+     * Number of tombstone cells or 0 if the format doesn't keep it.
+     */
+    long tombstones();
+
+    /**
+     * Bloom filter of the table keys or null if the table was written without it.
+     */
+    @Nullable
+    BloomFilter bloomFilter();
+
+    /**
+     * Range tombstones stored in the table.
+     */
+    @NotNull
+    RangeTombstones rangeTombstones();
+
+    /**
+     * The smallest key of the table or null if the table is empty.
+     */
+    @Nullable
+    ByteBuffer firstKey();
+
+    /**
+     * The greatest key of the table or null if the table is empty.
+     */
+    @Nullable
+    ByteBuffer lastKey();
+
+    /**
+     * Iterates cells starting at the given key.
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache
+     * @param stats     counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull ByteBuffer from,
+            boolean fillCache,
+            @Nullable ReadStats stats);
+
+    /**
+     * Iterates cells in descending order starting at the given key (inclusive).
+     *
+     * @param fillCache whether blocks read by the iterator are put to the block cache
+     * @param stats     counts of the iterator or null
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @NotNull ByteBuffer from,
+            boolean fillCache,
+            @Nullable ReadStats stats);
+
+    @Nullable
+    Cell get(@NotNull ByteBuffer key);
+
+    /**
+     * Checks the checksums of all the data blocks, reading them past the block cache.
+     *
+     * @return number of corrupted blocks, 0 if the format has no checksums
+     */
+    int verify();
+}
@@ -0,0 +1,97 @@
+package ru.mail.polis.persistence;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable view of all the tables of {@link LSMDao}: the memTable taking writes,
+ * memTables waiting to be flushed and {@link FileTable}s on disk, both newest first.
+ * Every change produces a new instance, so readers just take the current one without locking.
+ */
+final class TableSet {
+    /**
+     * Newest first: lower levels go first, tables of the same level by descending generation.
+     */
+    static final Comparator<FileTable> RECENCY = Comparator.comparingInt(FileTable::getLevel)
+            .thenComparing(FileTable::getGeneration, Comparator.reverseOrder());
+
+    @NotNull
+    final MemTable memTable;
+    @NotNull
+    final ImmutableList<Table> flushing;
+    @NotNull
+    final ImmutableList<FileTable> files;
+
+    TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final ImmutableList<Table> flushing,
+            @NotNull final ImmutableList<FileTable> files) {
+        this.memTable = memTable;
+        this.flushing = flushing;
+        this.files = files;
+    }
+
+    /**
+     * Moves the current memTable to the flush queue and starts writing to a fresh one.
+     */
+    @NotNull
+    TableSet seal(@NotNull final MemTable fresh) {
+        final ImmutableList<Table> queue = ImmutableList.<Table>builder()
+                .add(memTable)
+                .addAll(flushing)
+                .build();
+        return new TableSet(fresh, queue, files);
+    }
+
+    /**
+     * Replaces the flushed memTable with its {@link FileTable}.
+     */
+    @NotNull
+    TableSet flushed(
+            @NotNull final Table sealed,
+            @NotNull final FileTable table) {
+        final ImmutableList.Builder<Table> queue = ImmutableList.builder();
+        for (final Table t : flushing) {
+            if (t != sealed) {
+                queue.add(t);
+            }
+        }
+        return new TableSet(memTable, queue.build(), insert(files, table));
+    }
+
+    /**
+     * Replaces the compacted {@link FileTable}s with the results of their compaction.
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<FileTable> inputs,
+            @NotNull final Collection<FileTable> outputs) {
+        final List<FileTable> tables = new ArrayList<>(files);
+        tables.removeAll(inputs);
+        tables.addAll(outputs);
+        tables.sort(RECENCY);
+        return new TableSet(memTable, flushing, ImmutableList.copyOf(tables));
+    }
+
+    /**
+     * Keeps {@link FileTable}s in {@link #RECENCY} order.
+     */
+    @NotNull
+    private static ImmutableList<FileTable> insert(
+            @NotNull final List<FileTable> tables,
+            @NotNull final FileTable table) {
+        final List<FileTable> result = new ArrayList<>(tables.size() + 1);
+        result.addAll(tables);
+        int i = 0;
+        while (i < result.size() && RECENCY.compare(result.get(i), table) < 0) {
+            i++;
+        }
+        result.add(i, table);
+        return ImmutableList.copyOf(result);
+    }
+}
@@ -0,0 +1,13 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+
+/**
+ * Iterator of an {@link LSMDao} counting its {@link ReadStats}, returned when {@link LSMConfig#isReadStats()}.
+ */
+public interface TrackedIterator<E> extends Iterator<E> {
+    @NotNull
+    ReadStats getReadStats();
+}
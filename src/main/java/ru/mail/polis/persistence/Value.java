@@ -1,24 +1,105 @@
 package ru.mail.polis.persistence;
 
 import org.jetbrains.annotations.NotNull;
-import java.util.concurrent.atomic.AtomicInteger;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Value implements Comparable<Value> {
+    /**
+     * Marks the stored timestamps of {@link ValueLog} pointers, real timestamps never reach this bit.
+     */
+    private static final long POINTER = 1L << 62;
+
     private final long ts;
     private final ByteBuffer data;
-    private static final AtomicInteger atomicInteger = new AtomicInteger();
+    // The data is a pointer to the value in the value log
+    private final boolean pointer;
+    @Nullable
+    private final Batch batch;
+    // Version shadowed by this one, kept while a pending batch or a snapshot may need it
+    @Nullable
+    private final Value previous;
+    private static final AtomicLong lastTime = new AtomicLong();
 
     Value(final long ts, final ByteBuffer data) {
+        this(ts, data, false, null, null);
+    }
+
+    /**
+     * Creates the value of the batch, it stays invisible to readers until the batch is committed.
+     *
+     * @param pointer whether the data is a {@link ValueLog} pointer
+     */
+    Value(
+            final long ts,
+            @Nullable final ByteBuffer data,
+            final boolean pointer,
+            @NotNull final Batch batch) {
+        this(ts, data, pointer, batch, null);
+    }
+
+    private Value(
+            final long ts,
+            @Nullable final ByteBuffer data,
+            final boolean pointer,
+            @Nullable final Batch batch,
+            @Nullable final Value previous) {
         this.ts = ts;
         this.data = data;
+        this.pointer = pointer;
+        this.batch = batch;
+        this.previous = previous;
     }
 
     public static Value of(final ByteBuffer data) {
         return new Value(getTime(), data.duplicate());
     }
 
+    /**
+     * Creates the value stored in the {@link ValueLog}.
+     *
+     * @param pointer position of the value in the log
+     */
+    static Value pointer(@NotNull final ByteBuffer pointer) {
+        return pointer(getTime(), pointer);
+    }
+
+    /**
+     * Creates the value stored in the {@link ValueLog} keeping the given timestamp, e.g. for the moved values.
+     */
+    static Value pointer(
+            final long ts,
+            @NotNull final ByteBuffer pointer) {
+        return new Value(ts, pointer.duplicate(), true, null, null);
+    }
+
+    /**
+     * Recreates the value read from disk.
+     *
+     * @param storedTs timestamp written by {@link #storedTimeStamp()}
+     */
+    static Value stored(
+            final long storedTs,
+            @NotNull final ByteBuffer data) {
+        return new Value(storedTs & ~POINTER, data, (storedTs & POINTER) != 0, null, null);
+    }
+
+    /**
+     * Timestamp written to disk for the value, marking the pointers to the {@link ValueLog}.
+     */
+    long storedTimeStamp() {
+        return pointer ? ts | POINTER : ts;
+    }
+
+    /**
+     * Whether the data is a pointer to the value in the {@link ValueLog}.
+     */
+    boolean isPointer() {
+        return pointer;
+    }
+
     static Value tombstone() {
         return new Value(getTime(), null);
     }
@@ -43,9 +124,87 @@ public final class Value implements Comparable<Value> {
         return ts;
     }
 
+    /**
+     * Whether the value belongs to a batch not committed yet.
+     */
+    boolean isPending() {
+        return batch != null && !batch.committed;
+    }
+
+    /**
+     * The same value keeping the given one readable by pending batches and snapshots older than the value.
+     */
+    @NotNull
+    Value over(@NotNull final Value shadowed) {
+        return new Value(ts, data, pointer, batch, shadowed);
+    }
+
+    /**
+     * The newest version visible at the given time: this value or one of the versions it shadows,
+     * skipping the versions of pending batches.
+     *
+     * @param snapshot the greatest visible timestamp
+     * @return the version or null if the key had no value then
+     */
+    @Nullable
+    Value visibleAt(final long snapshot) {
+        Value value = this;
+        while (value != null && (value.ts > snapshot || value.isPending())) {
+            value = value.previous;
+        }
+        return value;
+    }
+
+    /**
+     * Makes the following timestamps greater than the given one, e.g. replayed from the write-ahead log.
+     */
+    static void advanceTime(final long ts) {
+        lastTime.accumulateAndGet(ts, Math::max);
+    }
+
+    /**
+     * The greatest timestamp given out so far.
+     */
+    static long currentTime() {
+        return lastTime.get();
+    }
+
+    /**
+     * The smallest timestamp given out at the given wall-clock time.
+     *
+     * @param millis milliseconds since the epoch
+     */
+    static long timeAt(final long millis) {
+        return millis * 10000;
+    }
+
+    /**
+     * Reserves consecutive timestamps greater than all the previous ones.
+     *
+     * @return the first of the timestamps
+     */
+    static long reserveTime(final int count) {
+        final long now = timeAt(System.currentTimeMillis());
+        return lastTime.updateAndGet(prev -> Math.max(prev + count, now + count - 1)) - count + 1;
+    }
+
+    /**
+     * Returns strictly increasing timestamps even for concurrent writers,
+     * so that the newest write of a key is always the one that wins.
+     */
     private static long getTime() {
-        final long time = System.currentTimeMillis() * 10000 + atomicInteger.incrementAndGet();
-        if (atomicInteger.get() > 10000) atomicInteger.set(0);
-        return time;
+        final long now = timeAt(System.currentTimeMillis());
+        return lastTime.updateAndGet(prev -> Math.max(prev + 1, now));
+    }
+
+    /**
+     * Makes the values of a batch visible to readers all at once.
+     */
+    static final class Batch {
+        private volatile boolean committed;
+
+        void commit() {
+            committed = true;
+        }
     }
 }
@@ -0,0 +1,438 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only files holding large values apart from the tables, so that compactions rewrite
+ * only small pointers to them. Every run of the DAO appends to a new file, which is replaced
+ * by the next one once it exceeds {@link LSMConfig#getValueLogFileSize()}.
+ * <p>
+ * Record is key length (int), key, value length (int) and value. Pointer to a value is the id
+ * of the file (long), offset of the value (long) and its length (int).
+ * Files of the previous runs may end with a record torn by a crash, it is left to the garbage collection.
+ * <p>
+ * Appends are not forced one by one: the write-ahead log forces the value log before its records
+ * holding the pointers (see {@link #sync()}), so does a flush before the table holding them.
+ * Channels of the readers are counted, the channel of a deleted file is closed by its last reader
+ * and its space is freed then.
+ */
+final class ValueLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ValueLog.class);
+    private static final String SUFFIX = ".vlog";
+    static final int POINTER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    private static final int CHUNK = 64 * 1024;
+
+    private final File base;
+    private final long fileSize;
+    // Guarded by itself, channels of the files being read
+    private final Map<Long, Reader> readers = new HashMap<>();
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    // Guarded by appendLock
+    private final NavigableSet<Long> files = new TreeSet<>();
+    private long fileId;
+    @Nullable
+    private FileChannel channel;
+    private long position;
+    private boolean dirty;
+
+    ValueLog(
+            @NotNull final File base,
+            @NotNull final LSMConfig config) throws IOException {
+        this.base = base;
+        this.fileSize = config.getValueLogFileSize();
+        try (Stream<Path> paths = Files.list(base.toPath())) {
+            for (final Path path : paths.collect(Collectors.toList())) {
+                final String name = path.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        files.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring {}", path);
+                    }
+                }
+            }
+        }
+        this.fileId = files.isEmpty() ? 1 : files.last() + 1;
+    }
+
+    /**
+     * Appends the value.
+     *
+     * @return pointer to the value
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    ByteBuffer append(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + key.remaining() + value.remaining());
+        record.putInt(key.remaining()).put(key.duplicate());
+        record.putInt(value.remaining()).put(value.duplicate());
+        record.flip();
+        synchronized (appendLock) {
+            final FileChannel out = active();
+            final long start = position;
+            write(out, record, start);
+            position += record.capacity();
+            dirty = true;
+            return pointer(fileId, start + 2 * Integer.BYTES + key.remaining(), value.remaining());
+        }
+    }
+
+    /**
+     * Appends the value made of the head followed by the rest of the stream.
+     *
+     * @return pointer to the value
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    ByteBuffer append(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer head,
+            @NotNull final InputStream rest) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES + key.remaining());
+        header.putInt(key.remaining()).put(key.duplicate()).putInt(0);
+        header.flip();
+        synchronized (appendLock) {
+            final FileChannel out = active();
+            final long start = position;
+            final long offset = start + header.capacity();
+            long length = head.remaining();
+            try {
+                write(out, header, start);
+                write(out, head.duplicate(), offset);
+                final byte[] chunk = new byte[CHUNK];
+                int read;
+                while ((read = rest.read(chunk)) != -1) {
+                    if (length + read > Integer.MAX_VALUE) {
+                        throw new IOException("Value is too large");
+                    }
+                    write(out, ByteBuffer.wrap(chunk, 0, read), offset + length);
+                    length += read;
+                }
+                write(out, ByteBuffer.allocate(Integer.BYTES).putInt(0, (int) length), offset - Integer.BYTES);
+            } catch (IOException | RuntimeException e) {
+                out.truncate(start);
+                throw e;
+            }
+            position = offset + length;
+            dirty = true;
+            return pointer(fileId, offset, (int) length);
+        }
+    }
+
+    /**
+     * Reads the value the pointer refers to.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    ByteBuffer read(@NotNull final ByteBuffer pointer) throws IOException {
+        final Reader reader = acquire(pointer.getLong(pointer.position()));
+        try {
+            final long offset = pointer.getLong(pointer.position() + Long.BYTES);
+            final ByteBuffer value = ByteBuffer.allocate(pointer.getInt(pointer.position() + 2 * Long.BYTES));
+            readFully(reader.channel, value, offset);
+            return value.flip();
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * Transfers the value the pointer refers to straight from the file to the channel,
+     * see {@link FileChannel#transferTo}. Non-blocking channels accepting nothing are not supported.
+     *
+     * @return number of bytes transferred
+     * @throws IOException if an I/O error occurred
+     */
+    long transferTo(
+            @NotNull final ByteBuffer pointer,
+            @NotNull final WritableByteChannel target) throws IOException {
+        final Reader reader = acquire(pointer.getLong(pointer.position()));
+        try {
+            final FileChannel in = reader.channel;
+            final long offset = pointer.getLong(pointer.position() + Long.BYTES);
+            final int length = pointer.getInt(pointer.position() + 2 * Long.BYTES);
+            long transferred = 0;
+            while (transferred < length) {
+                final long count = in.transferTo(offset + transferred, length - transferred, target);
+                if (count <= 0) {
+                    if (offset + transferred >= in.size()) {
+                        throw new IOException("Value log is shorter than expected");
+                    }
+                    throw new IOException("Channel accepted none of the " + (length - transferred) + " bytes left");
+                }
+                transferred += count;
+            }
+            return transferred;
+        } finally {
+            release(reader);
+        }
+    }
+
+    @NotNull
+    static ByteBuffer pointer(
+            final long fileId,
+            final long offset,
+            final int length) {
+        final ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE);
+        pointer.putLong(fileId).putLong(offset).putInt(length);
+        return pointer.flip();
+    }
+
+    /**
+     * Ids of the files not appended to any more, the oldest first.
+     */
+    @NotNull
+    List<Long> sealed() {
+        synchronized (appendLock) {
+            return new ArrayList<>(files.headSet(fileId, false));
+        }
+    }
+
+    /**
+     * Size of the file in bytes, 0 if it is deleted.
+     */
+    long size(final long id) {
+        return file(id).length();
+    }
+
+    /**
+     * Total size of the files in bytes.
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (final long id : all()) {
+            size += size(id);
+        }
+        return size;
+    }
+
+    @NotNull
+    private List<Long> all() {
+        synchronized (appendLock) {
+            return new ArrayList<>(files);
+        }
+    }
+
+    /**
+     * Reads the records of the file up to the first incomplete one. Records are read through the channel
+     * skipping the values, so files grown past 2 GB by a large last value are scanned as well.
+     *
+     * @param consumer receives keys and pointers to their values
+     * @throws IOException if an I/O error occurred
+     */
+    void scan(
+            final long id,
+            @NotNull final Entries consumer) throws IOException {
+        try (FileChannel fc = FileChannel.open(file(id).toPath(), StandardOpenOption.READ)) {
+            final long size = fc.size();
+            final ByteBuffer keyLength = ByteBuffer.allocate(Integer.BYTES);
+            long offset = 0L;
+            while (size - offset >= 2 * Integer.BYTES) {
+                readFully(fc, keyLength.clear(), offset);
+                final int length = keyLength.getInt(0);
+                if (length < 0 || length > size - offset - 2 * Integer.BYTES) {
+                    break;
+                }
+                // Key followed by the length of the value
+                final ByteBuffer key = ByteBuffer.allocate(length + Integer.BYTES);
+                readFully(fc, key, offset + Integer.BYTES);
+                final long valueStart = offset + 2 * Integer.BYTES + length;
+                final int valueLength = key.getInt(length);
+                if (valueLength < 0 || valueLength > size - valueStart) {
+                    break;
+                }
+                consumer.accept(key.flip().limit(length), pointer(id, valueStart, valueLength));
+                offset = valueStart + valueLength;
+            }
+            if (offset < size) {
+                log.warn("Ignoring {} bytes torn from the end of {}", size - offset, file(id));
+            }
+        }
+    }
+
+    /**
+     * Deletes the file once its live values are moved. Readers of the file finish their reads,
+     * the following ones fail with {@link java.nio.file.NoSuchFileException}.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    void delete(final long id) throws IOException {
+        synchronized (appendLock) {
+            files.remove(id);
+        }
+        synchronized (readers) {
+            final Reader reader = readers.remove(id);
+            if (reader != null) {
+                reader.deleted = true;
+                if (reader.refs == 0) {
+                    reader.channel.close();
+                }
+            }
+            Files.deleteIfExists(file(id).toPath());
+        }
+    }
+
+    /**
+     * Forces the values appended so far to disk. Called before forcing the write-ahead log records
+     * and writing the tables that hold pointers to them.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    void sync() throws IOException {
+        synchronized (syncLock) {
+            final FileChannel out;
+            synchronized (appendLock) {
+                if (!dirty || channel == null) {
+                    return;
+                }
+                out = channel;
+                dirty = false;
+            }
+            try {
+                out.force(false);
+            } catch (ClosedChannelException e) {
+                // The file is full, it was forced before it was closed
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        }
+        synchronized (readers) {
+            for (final Reader reader : readers.values()) {
+                reader.channel.close();
+            }
+            readers.clear();
+        }
+    }
+
+    /**
+     * Channel to append to, starting the next file if the current one is full.
+     */
+    @NotNull
+    private FileChannel active() throws IOException {
+        if (channel != null && position >= fileSize) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+            fileId++;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(file(fileId).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            files.add(fileId);
+            position = channel.size();
+        }
+        return channel;
+    }
+
+    /**
+     * Takes the channel of the file opening it if needed, every reader has to {@link #release} it.
+     */
+    @NotNull
+    private Reader acquire(final long id) throws IOException {
+        synchronized (readers) {
+            Reader reader = readers.get(id);
+            if (reader == null) {
+                reader = new Reader(FileChannel.open(file(id).toPath(), StandardOpenOption.READ));
+                readers.put(id, reader);
+            }
+            reader.refs++;
+            return reader;
+        }
+    }
+
+    private void release(@NotNull final Reader reader) throws IOException {
+        synchronized (readers) {
+            reader.refs--;
+            if (reader.deleted && reader.refs == 0) {
+                reader.channel.close();
+            }
+        }
+    }
+
+    private static void readFully(
+            @NotNull final FileChannel in,
+            @NotNull final ByteBuffer dst,
+            final long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Value log is shorter than expected");
+            }
+        }
+    }
+
+    private static void write(
+            @NotNull final FileChannel out,
+            @NotNull final ByteBuffer src,
+            final long at) throws IOException {
+        long offset = at;
+        while (src.hasRemaining()) {
+            offset += out.write(src, offset);
+        }
+    }
+
+    @NotNull
+    private File file(final long id) {
+        return new File(base, id + SUFFIX);
+    }
+
+    /**
+     * Channel of a file shared by its readers.
+     */
+    private static final class Reader {
+        final FileChannel channel;
+        // Guarded by readers
+        int refs;
+        boolean deleted;
+
+        Reader(@NotNull final FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Receives the records of a file.
+     */
+    @FunctionalInterface
+    interface Entries {
+        void accept(
+                @NotNull ByteBuffer key,
+                @NotNull ByteBuffer pointer) throws IOException;
+    }
+}
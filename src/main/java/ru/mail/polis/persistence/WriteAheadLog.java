@@ -0,0 +1,411 @@
+package ru.mail.polis.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the writes not flushed to {@link FileTable}s yet. Every memTable gets its own
+ * segment file which is deleted once the memTable is flushed.
+ * <p>
+ * Record is payload length (int), CRC32C of the payload (int) and the payload, which is a single entry:
+ * key length (int), key, timestamp (long, negative for tombstones, see {@link Value#storedTimeStamp()})
+ * [, value length (int), value].
+ * Payload of a batch is the negated number of entries (int) followed by the entries.
+ * Payload of a range tombstone is {@link #RANGE} (int), "from" length (int), "from", "to" length (int), "to"
+ * and timestamp (long).
+ * Replay stops at the first incomplete or corrupted record, that is the write torn by a crash,
+ * so a batch is either replayed whole or not at all.
+ * <p>
+ * Forcing the log makes durable every record appended before, so concurrent writers waiting for
+ * their records share a single {@link FileChannel#force} (group commit).
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final String SUFFIX = ".wal";
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int RANGE = Integer.MIN_VALUE;
+
+    private final File base;
+    private final SyncPolicy policy;
+    @Nullable
+    private final ValueLog valueLog;
+    @Nullable
+    private final ScheduledExecutorService syncer;
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    // Guarded by appendLock
+    private final NavigableSet<Long> segments = new TreeSet<>();
+    private long segment;
+    private FileChannel channel;
+    private long appended;
+    // Guarded by syncLock
+    private long synced;
+
+    /**
+     * Opens the log of the folder.
+     *
+     * @param valueLog value log forced before the records holding pointers to it or null
+     * @throws IOException if an I/O error occurred
+     */
+    WriteAheadLog(
+            @NotNull final File base,
+            @NotNull final LSMConfig config,
+            @Nullable final ValueLog valueLog) throws IOException {
+        this.base = base;
+        this.policy = config.getWalSyncPolicy();
+        this.valueLog = valueLog;
+        try (Stream<Path> files = Files.list(base.toPath())) {
+            for (final Path path : files.collect(Collectors.toList())) {
+                final String name = path.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring {}", path);
+                    }
+                }
+            }
+        }
+        this.segment = segments.isEmpty() ? 1 : segments.last() + 1;
+        if (policy == SyncPolicy.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "wal-sync-" + base.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getWalSyncInterval();
+            syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    force();
+                } catch (IOException e) {
+                    log.error("Can't sync write-ahead log of " + base, e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Reads the records left by the previous run. Their segments are deleted together with the segment
+     * of the first memTable flushed afterwards, see {@link #release(long)}.
+     *
+     * @param consumer receives keys and values in the order they were logged
+     * @param ranges   receives range tombstones
+     * @throws IOException if an I/O error occurred
+     */
+    void replay(
+            @NotNull final BiConsumer<ByteBuffer, Value> consumer,
+            @NotNull final Consumer<RangeTombstone> ranges) throws IOException {
+        final NavigableSet<Long> existing;
+        synchronized (appendLock) {
+            existing = new TreeSet<>(segments);
+        }
+        for (final long id : existing) {
+            final File file = file(id);
+            final ByteBuffer data;
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                data = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fc.size());
+            }
+            final CRC32C crc = new CRC32C();
+            while (data.remaining() >= HEADER) {
+                final int length = data.getInt(data.position());
+                final int checksum = data.getInt(data.position() + Integer.BYTES);
+                if (length < Integer.BYTES + Long.BYTES || length > data.remaining() - HEADER) {
+                    break;
+                }
+                final ByteBuffer payload = data.duplicate();
+                payload.position(data.position() + HEADER).limit(data.position() + HEADER + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                decode(payload.slice(), consumer, ranges);
+                data.position(payload.limit());
+            }
+            if (data.hasRemaining()) {
+                log.warn("Ignoring {} bytes torn from the end of {}", data.remaining(), file);
+            }
+        }
+    }
+
+    private static void decode(
+            @NotNull final ByteBuffer payload,
+            @NotNull final BiConsumer<ByteBuffer, Value> consumer,
+            @NotNull final Consumer<RangeTombstone> ranges) {
+        final int first = payload.getInt(payload.position());
+        if (first >= 0) {
+            decodeEntry(payload, consumer);
+            return;
+        }
+        if (first == RANGE) {
+            payload.getInt();
+            final ByteBuffer from = slice(payload, payload.getInt());
+            final ByteBuffer to = slice(payload, payload.getInt());
+            ranges.accept(new RangeTombstone(from, to, payload.getLong()));
+            return;
+        }
+        payload.getInt();
+        for (int i = 0; i < -first; i++) {
+            decodeEntry(payload, consumer);
+        }
+    }
+
+    private static void decodeEntry(
+            @NotNull final ByteBuffer payload,
+            @NotNull final BiConsumer<ByteBuffer, Value> consumer) {
+        final ByteBuffer key = slice(payload, payload.getInt());
+        final long timestamp = payload.getLong();
+        if (timestamp < 0) {
+            consumer.accept(key, new Value(-timestamp, null));
+        } else {
+            consumer.accept(key, Value.stored(timestamp, slice(payload, payload.getInt())));
+        }
+    }
+
+    /**
+     * Takes the given number of bytes advancing the payload position.
+     */
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer payload,
+            final int length) {
+        final ByteBuffer slice = payload.duplicate();
+        slice.limit(slice.position() + length);
+        payload.position(payload.position() + length);
+        return slice.slice();
+    }
+
+    /**
+     * Appends the write to the current segment.
+     *
+     * @return sequence number of the record to wait for with {@link #awaitDurable(long)}
+     * @throws IOException if an I/O error occurred
+     */
+    long append(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        final int length = entrySize(key, value);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        putEntry(record, key, value);
+        return append(record);
+    }
+
+    /**
+     * Appends the writes of a batch to the current segment as a single record.
+     *
+     * @return sequence number of the record to wait for with {@link #awaitDurable(long)}
+     * @throws IOException if an I/O error occurred
+     */
+    long append(
+            @NotNull final ByteBuffer[] keys,
+            @NotNull final Value[] values) throws IOException {
+        int length = Integer.BYTES;
+        for (int i = 0; i < keys.length; i++) {
+            length += entrySize(keys[i], values[i]);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        record.putInt(-keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            putEntry(record, keys[i], values[i]);
+        }
+        return append(record);
+    }
+
+    /**
+     * Appends the range tombstone to the current segment.
+     *
+     * @return sequence number of the record to wait for with {@link #awaitDurable(long)}
+     * @throws IOException if an I/O error occurred
+     */
+    long append(@NotNull final RangeTombstone tombstone) throws IOException {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        final ByteBuffer record = ByteBuffer.allocate(
+                HEADER + 3 * Integer.BYTES + from.remaining() + to.remaining() + Long.BYTES);
+        record.position(HEADER);
+        record.putInt(RANGE)
+                .putInt(from.remaining()).put(from)
+                .putInt(to.remaining()).put(to)
+                .putLong(tombstone.getTimeStamp());
+        return append(record);
+    }
+
+    private static int entrySize(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        return Integer.BYTES + key.remaining() + Long.BYTES
+                + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
+    }
+
+    private static void putEntry(
+            @NotNull final ByteBuffer record,
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        record.putInt(key.remaining()).put(key.duplicate());
+        if (value.isRemoved()) {
+            record.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer data = value.getData();
+            record.putLong(value.storedTimeStamp()).putInt(data.remaining()).put(data);
+        }
+    }
+
+    /**
+     * Fills the header of the record and appends it.
+     */
+    private long append(@NotNull final ByteBuffer record) throws IOException {
+        final int length = record.position() - HEADER;
+        final CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length).putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+
+        synchronized (appendLock) {
+            if (channel == null) {
+                channel = FileChannel.open(file(segment).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                segments.add(segment);
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * Returns once the record is on disk if every write has to be synced, otherwise returns immediately.
+     *
+     * @param sequence number returned by {@link #append}
+     * @throws IOException if an I/O error occurred
+     */
+    void awaitDurable(final long sequence) throws IOException {
+        if (policy != SyncPolicy.ALWAYS) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Someone else has already forced the record while we were waiting
+            if (synced >= sequence) {
+                return;
+            }
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        synchronized (syncLock) {
+            final FileChannel current;
+            final long target;
+            synchronized (appendLock) {
+                current = channel;
+                target = appended;
+            }
+            if (target > synced) {
+                syncValueLog();
+                if (current != null) {
+                    current.force(false);
+                }
+                synced = target;
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one for the next memTable.
+     * Must be called while nobody appends.
+     *
+     * @return id of the closed segment to {@link #release} once its memTable is flushed
+     * @throws IOException if an I/O error occurred
+     */
+    long roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (channel != null) {
+                    if (policy != SyncPolicy.NEVER) {
+                        syncValueLog();
+                        channel.force(false);
+                    }
+                    channel.close();
+                    channel = null;
+                }
+                synced = appended;
+                return segment++;
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments up to the given one since their memTables are on disk.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    void release(final long id) throws IOException {
+        final NavigableSet<Long> released;
+        synchronized (appendLock) {
+            released = new TreeSet<>(segments.headSet(id, true));
+            segments.removeAll(released);
+        }
+        for (final long old : released) {
+            Files.deleteIfExists(file(old).toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (channel != null) {
+                    if (policy != SyncPolicy.NEVER) {
+                        syncValueLog();
+                        channel.force(false);
+                    }
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the values before the records pointing to them, so a crash never leaves dangling pointers.
+     */
+    private void syncValueLog() throws IOException {
+        if (valueLog != null) {
+            valueLog.sync();
+        }
+    }
+
+    @NotNull
+    private File file(final long id) {
+        return new File(base, id + SUFFIX);
+    }
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.BlockCache;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the block cache and its resistance to scans.
+ */
+class BlockCacheTest extends TestBase {
+    private static final int KEYS = 4000;
+    private static final int HOT_KEYS = 50;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(1024 * 1024)
+            .compression(Compression.NONE)
+            .blockCacheSize(1024 * 1024)
+            .build();
+
+    @Test
+    void hitsRepeatedReads(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final BlockCache cache = cache(dao);
+            for (int i = 0; i < HOT_KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            final long misses = cache.getMisses();
+            assertTrue(misses > 0);
+            for (int i = 0; i < HOT_KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            assertEquals(misses, cache.getMisses());
+            assertTrue(cache.getHits() >= HOT_KEYS);
+        }
+    }
+
+    @Test
+    void survivesScan(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final BlockCache cache = cache(dao);
+            // Read the hot keys twice to protect their blocks
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < HOT_KEYS; i++) {
+                    dao.get(key(i * KEYS / HOT_KEYS));
+                }
+            }
+
+            // The scan reads about four times as many blocks as the cache holds
+            scan(((LSMDao) dao).iterator(ByteBuffer.allocate(0), true));
+            assertTrue(cache.getEvictions() > 0);
+            assertTrue(cache.getSize() <= cache.getCapacity());
+
+            final long misses = cache.getMisses();
+            for (int i = 0; i < HOT_KEYS; i++) {
+                final int key = i * KEYS / HOT_KEYS;
+                assertEquals(value(key), dao.get(key(key)));
+            }
+            assertEquals(misses, cache.getMisses());
+        }
+    }
+
+    @Test
+    void scanOptsOut(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final BlockCache cache = cache(dao);
+            scan(((LSMDao) dao).iterator(ByteBuffer.allocate(0), false));
+            assertEquals(0L, cache.getSize());
+            assertEquals(0L, cache.getEvictions());
+            assertTrue(cache.getMisses() > 0);
+        }
+    }
+
+    private static BlockCache cache(final DAO dao) {
+        final BlockCache cache = ((LSMDao) dao).getBlockCache();
+        assertNotNull(cache);
+        return cache;
+    }
+
+    private static void scan(final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            final Record record = records.next();
+            assertEquals(value(record.getKey().getInt(0)), record.getValue());
+            count++;
+        }
+        assertEquals(KEYS, count);
+    }
+
+    private static void fill(final File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static ByteBuffer value(final int i) {
+        final ByteBuffer value = ByteBuffer.allocate(1000);
+        value.putInt(0, i);
+        return value;
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the block-based SSTable format and compatibility with the old one.
+ */
+class BlockFormatTest extends TestBase {
+    private static final String PREFIX = "tenant/0123456789abcdef0123456789abcdef/events/2019-05-15/";
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder().blockSize(256).build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final int count = 10_000;
+        long rawSize = 0;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = key(i * 2);
+                final ByteBuffer value = randomBuffer(8);
+                dao.upsert(key, value);
+                expected.put(key, value);
+                rawSize += key.remaining() + value.remaining() + Long.BYTES + 2 * Integer.BYTES;
+            }
+        }
+
+        // Prefix compression and sparse index make tables smaller than the keys themselves
+        assertTrue(Files.directorySize(data) < rawSize / 2);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            // Odd keys are absent
+            for (int i = 1; i < 2 * count; i += 98) {
+                final ByteBuffer absent = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+                checkScan(expected, dao, absent);
+            }
+            checkScan(expected, dao, ByteBuffer.allocate(0));
+            assertFalse(dao.iterator(key(2 * count)).hasNext());
+        }
+    }
+
+    @Test
+    void legacyFormat(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            expected.put(key(i), randomValue());
+        }
+        writeLegacyTable(new File(data, "1ssTable.dat"), expected);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            checkScan(expected, dao, ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+
+            // Mix the old table with a new one and compact them into the new format
+            final ByteBuffer key = key(50);
+            dao.remove(key);
+            expected.remove(key);
+            dao.compact();
+            checkScan(expected, dao, ByteBuffer.allocate(0));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            checkScan(expected, dao, ByteBuffer.allocate(0));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%s%08d", PREFIX, i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void checkScan(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final DAO dao,
+            final ByteBuffer from) throws IOException {
+        final Iterator<Record> actual = dao.iterator(from);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(from).entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    /**
+     * Writes the format with one int offset per row used before data blocks.
+     */
+    private static void writeLegacyTable(
+            final File file,
+            final NavigableMap<ByteBuffer, ByteBuffer> cells) throws IOException {
+        int size = Integer.BYTES;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : cells.entrySet()) {
+            size += 3 * Integer.BYTES + Long.BYTES + entry.getKey().remaining() + entry.getValue().remaining();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        final int[] offsets = new int[cells.size()];
+        int row = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : cells.entrySet()) {
+            offsets[row++] = buffer.position();
+            buffer.putInt(entry.getKey().remaining());
+            buffer.put(entry.getKey().duplicate());
+            buffer.putLong(1L);
+            buffer.putInt(entry.getValue().remaining());
+            buffer.put(entry.getValue().duplicate());
+        }
+        for (final int offset : offsets) {
+            buffer.putInt(offset);
+        }
+        buffer.putInt(cells.size());
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            channel.write(buffer);
+        }
+    }
+}
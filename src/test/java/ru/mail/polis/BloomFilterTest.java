@@ -0,0 +1,95 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that Bloom filters of SSTables short-circuit lookups of absent keys.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+    private static final int MISSES = 1000;
+
+    @Test
+    void skipsAbsentKeys(@TempDir File data) throws IOException {
+        final Collection<ByteBuffer> keys = fill(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(key, dao.get(key));
+            }
+            assertEquals(0L, ((LSMDao) dao).getBloomFilterSkips());
+
+            for (int i = 0; i < MISSES; i++) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            }
+            // 10 bits per key give about 1% of false positives
+            assertTrue(((LSMDao) dao).getBloomFilterSkips() > MISSES * 9 / 10);
+        }
+    }
+
+    @Test
+    void disabled(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder().bloomBitsPerKey(0).build();
+        final Collection<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                keys.add(key);
+                dao.upsert(key, key);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(key, dao.get(key));
+            }
+            for (int i = 0; i < MISSES; i++) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            }
+            assertEquals(0L, ((LSMDao) dao).getBloomFilterSkips());
+        }
+    }
+
+    @Test
+    void tombstones(@TempDir File data) throws IOException {
+        final Collection<ByteBuffer> keys = fill(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    private static Collection<ByteBuffer> fill(final File data) throws IOException {
+        final Collection<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                keys.add(key);
+                dao.upsert(key, key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,142 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that corrupted tables are detected by reads and by scrubbing.
+ */
+class ChecksumTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .metrics(true)
+            .build();
+
+    @Test
+    void corruptedBlock(@TempDir File data) throws IOException {
+        fill(data);
+        // The first block starts the file
+        corrupt(table(data), 16);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key(0)));
+            // Blocks are verified one by one, the others stay readable
+            assertEquals(value(KEYS - 1), dao.get(key(KEYS - 1)));
+
+            final LSMDao lsmDao = (LSMDao) dao;
+            assertEquals(1, lsmDao.scrub());
+            final Metrics metrics = lsmDao.getMetrics();
+            assertEquals(1, metrics.count(Metrics.Counter.SCRUBBED_TABLES));
+            assertEquals(1, metrics.count(Metrics.Counter.CORRUPTED_TABLES));
+            assertEquals(1, metrics.count(Metrics.Counter.CORRUPTED_BLOCKS));
+        }
+    }
+
+    @Test
+    void corruptedFooter(@TempDir File data) throws IOException {
+        fill(data);
+        final File table = table(data);
+        // Lowest byte of the number of rows in the footer
+        corrupt(table, table.length() - 37);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key(0)));
+            final LSMDao lsmDao = (LSMDao) dao;
+            assertEquals(1, lsmDao.scrub());
+            assertEquals(0, lsmDao.getMetrics().count(Metrics.Counter.CORRUPTED_BLOCKS));
+        }
+    }
+
+    @Test
+    void corruptedVersion(@TempDir File data) throws IOException {
+        fill(data);
+        final File table = table(data);
+        // Lowest byte of the version, the footer checksum covers it
+        corrupt(table, table.length() - 2 * Integer.BYTES + 3);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key(0)));
+            assertEquals(1, ((LSMDao) dao).scrub());
+        }
+    }
+
+    @Test
+    void backgroundScrubbing(@TempDir File data) throws IOException, InterruptedException {
+        fill(data);
+        corrupt(table(data), 16);
+        final LSMConfig config = LSMConfig.builder()
+                .metrics(true)
+                .scrubInterval(10)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final Metrics metrics = ((LSMDao) dao).getMetrics();
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (metrics.count(Metrics.Counter.CORRUPTED_TABLES) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(metrics.count(Metrics.Counter.CORRUPTED_TABLES) > 0);
+        }
+    }
+
+    @Test
+    void intactTables(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final LSMDao lsmDao = (LSMDao) dao;
+            assertEquals(0, lsmDao.scrub());
+            assertEquals(1, lsmDao.getMetrics().count(Metrics.Counter.SCRUBBED_TABLES));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    /**
+     * Writes a single table, closing the DAO flushes it.
+     */
+    private static void fill(final File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+    }
+
+    private static File table(final File data) {
+        final File[] tables = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith("ssTable.dat")));
+        assertEquals(1, tables.length);
+        return tables[0];
+    }
+
+    private static void corrupt(
+            final File file,
+            final long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            final int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value of %08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks SSTable block compression.
+ */
+class CompressionTest extends TestBase {
+    private static final int COUNT = 5_000;
+
+    @Test
+    void compressible(@TempDir File data) throws IOException {
+        for (final Compression compression : Compression.values()) {
+            final File dir = new File(data, compression.name());
+            assertTrue(dir.mkdir());
+            final LSMConfig config = LSMConfig.builder().compression(compression).build();
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            long rawSize = 0;
+            try (DAO dao = DAOFactory.create(dir, config)) {
+                for (int i = 0; i < COUNT; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = json(i);
+                    rawSize += key.remaining() + value.remaining();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            final long size = Files.directorySize(dir);
+            if (compression == Compression.NONE) {
+                assertTrue(size > rawSize);
+            } else {
+                assertTrue(size < rawSize / 2, compression + " gives " + size + " of " + rawSize);
+            }
+
+            try (DAO dao = DAOFactory.create(dir, config)) {
+                check(expected, dao);
+            }
+        }
+    }
+
+    @Test
+    void incompressible(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder().compression(Compression.LZ).build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(1 + ThreadLocalRandom.current().nextInt(2048));
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(expected, dao);
+        }
+    }
+
+    @Test
+    void mixedCodecs(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        int i = 0;
+        for (final Compression compression : Compression.values()) {
+            final LSMConfig config = LSMConfig.builder().compression(compression).build();
+            try (DAO dao = DAOFactory.create(data, config)) {
+                for (int j = 0; j < COUNT / 10; j++, i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = json(i);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        // Compact the tables written by every codec into a single deflated one
+        final LSMConfig config = LSMConfig.builder().compression(Compression.DEFLATE).build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(expected, dao);
+            dao.compact();
+            check(expected, dao);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            check(expected, dao);
+        }
+    }
+
+    static ByteBuffer json(final int i) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String value = "{\"id\":" + i
+                + ",\"user\":\"user-" + random.nextInt(1000)
+                + "\",\"status\":\"" + (random.nextBoolean() ? "active" : "blocked")
+                + "\",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"balance\":" + random.nextInt(100_000)
+                + ",\"description\":\"The quick brown fox jumps over the lazy dog\"}";
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final DAO dao) throws IOException {
+        final Iterator<Record> actual = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+}
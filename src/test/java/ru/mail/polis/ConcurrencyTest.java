@@ -0,0 +1,205 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link DAO} operations stay linearizable when used from many threads
+ * while memTables are being flushed in the background.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 64;
+    private static final int OPS_PER_THREAD = 3000;
+
+    @Test
+    void readYourWrites(@TempDir File data) throws Exception {
+        final List<Map<ByteBuffer, ByteBuffer>> expected = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final Map<ByteBuffer, ByteBuffer> model = new HashMap<>();
+                expected.add(model);
+                final int thread = t;
+                tasks.add(() -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int op = 0; op < OPS_PER_THREAD; op++) {
+                        final ByteBuffer key = key(thread, random.nextInt(KEYS_PER_THREAD));
+                        if (random.nextInt(4) == 0) {
+                            dao.remove(key);
+                            model.remove(key);
+                            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                        } else {
+                            final ByteBuffer value = randomValue();
+                            dao.upsert(key, value);
+                            model.put(key, value);
+                            assertEquals(value, dao.get(key));
+                        }
+                    }
+                    return null;
+                });
+            }
+            runAll(tasks);
+            check(dao, expected);
+        }
+
+        // Everything must survive the restart
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void monotonicReads(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final int writes = 10000;
+        final AtomicLong completed = new AtomicLong(-1L);
+        final AtomicBoolean done = new AtomicBoolean();
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            tasks.add(() -> {
+                try {
+                    for (long i = 0; i < writes; i++) {
+                        dao.upsert(key, counter(i));
+                        completed.set(i);
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            });
+            for (int t = 1; t < THREADS; t++) {
+                tasks.add(() -> {
+                    long last = -1L;
+                    while (!done.get()) {
+                        final long lower = completed.get();
+                        if (lower < 0) {
+                            continue;
+                        }
+                        final long seen = dao.get(key).getLong();
+                        assertTrue(seen >= lower, "Stale read " + seen + " after " + lower);
+                        assertTrue(seen >= last, "Read " + seen + " went back from " + last);
+                        last = seen;
+                    }
+                    return null;
+                });
+            }
+            runAll(tasks);
+            assertEquals(writes - 1, dao.get(key).getLong());
+        }
+    }
+
+    @Test
+    void scanWhileWriting(@TempDir File data) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS / 2; t++) {
+                final int thread = t;
+                tasks.add(() -> {
+                    try {
+                        for (int op = 0; op < OPS_PER_THREAD; op++) {
+                            dao.upsert(key(thread, op), randomValue());
+                        }
+                    } finally {
+                        done.set(true);
+                    }
+                    return null;
+                });
+            }
+            for (int t = 0; t < THREADS / 2; t++) {
+                tasks.add(() -> {
+                    while (!done.get()) {
+                        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                        Record previous = null;
+                        while (records.hasNext()) {
+                            final Record current = records.next();
+                            if (previous != null) {
+                                assertTrue(previous.compareTo(current) < 0);
+                            }
+                            previous = current;
+                        }
+                    }
+                    return null;
+                });
+            }
+            runAll(tasks);
+        }
+    }
+
+    private static ByteBuffer key(
+            final int thread,
+            final int index) {
+        final ByteBuffer result = ByteBuffer.allocate(KEY_LENGTH);
+        result.putInt(thread);
+        result.putInt(index);
+        result.rewind();
+        return result;
+    }
+
+    private static ByteBuffer counter(final long value) {
+        final ByteBuffer result = randomValue();
+        result.putLong(0, value);
+        return result;
+    }
+
+    private static void check(
+            final DAO dao,
+            final List<Map<ByteBuffer, ByteBuffer>> expected) throws IOException {
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                final ByteBuffer key = key(t, i);
+                final ByteBuffer value = expected.get(t).get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+        }
+    }
+
+    private static void runAll(final List<Callable<Void>> tasks) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (final Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks iteration in descending order over the memTable and tables of several blocks.
+ */
+class DescendingTest extends TestBase {
+    private static final int KEYS = 2000;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(Long.MAX_VALUE)
+            .blockSize(256)
+            .compression(Compression.LZ)
+            .build();
+
+    @Test
+    void empty(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertFalse(dao.descendingIterator(key(KEYS)).hasNext());
+            dao.upsert(key(1), key(1));
+            assertFalse(dao.descendingIterator(key(0)).hasNext());
+            assertTrue(dao.descendingIterator(key(1)).hasNext());
+            assertFalse(dao.descendingRange(key(1), key(2)).hasNext());
+        }
+    }
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(7);
+        for (int table = 0; table < 4; table++) {
+            try (DAO dao = DAOFactory.create(data, CONFIG)) {
+                write(dao, random, expected);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            // Part of the data stays in the memTable
+            write(dao, random, expected);
+            for (int i = 0; i < 50; i++) {
+                final ByteBuffer from = key(random.nextInt(KEYS + 10));
+                check(dao.descendingIterator(from), expected.headMap(from, true).descendingMap());
+            }
+            check(dao.descendingIterator(key(KEYS / 2)), expected.headMap(key(KEYS / 2), true).descendingMap());
+            check(dao.descendingRange(key(100), key(10)), expected.subMap(key(10), false, key(100), true).descendingMap());
+
+            dao.compact();
+            check(dao.descendingRange(key(100), key(10)), expected.subMap(key(10), false, key(100), true).descendingMap());
+        }
+    }
+
+    private static void write(
+            final DAO dao,
+            final Random random,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < KEYS / 2; i++) {
+            final ByteBuffer key = key(random.nextInt(KEYS));
+            if (random.nextInt(5) == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else {
+                final ByteBuffer value = randomBuffer(16);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+    }
+
+    private static void check(
+            final Iterator<Record> actual,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
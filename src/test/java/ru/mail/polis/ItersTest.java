@@ -27,6 +27,20 @@ class ItersTest {
         assertEquals(6, Iterators.size(Iters.until(sixNumbers.iterator(), 100)));
     }
 
+    @Test
+    void downTo() {
+        assertFalse(Iters.downTo(Iters.empty(), 0).hasNext());
+
+        final ImmutableList<Integer> sixNumbers = ImmutableList.of(6, 5, 4, 3, 2, 1);
+
+        assertFalse(Iters.downTo(sixNumbers.iterator(), 7).hasNext());
+
+        assertEquals(1, Iterators.size(Iters.downTo(sixNumbers.iterator(), 5)));
+        assertEquals(3, Iterators.size(Iters.downTo(sixNumbers.iterator(), 3)));
+        assertEquals(6, Iterators.size(Iters.downTo(sixNumbers.iterator(), 0)));
+        assertEquals(6, Iterators.size(Iters.downTo(sixNumbers.iterator(), -100)));
+    }
+
     @Test
     void collapseEquals() {
         assertFalse(Iters.collapseEquals(Iters.empty()).hasNext());
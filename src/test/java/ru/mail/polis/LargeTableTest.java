@@ -0,0 +1,112 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks tables mapped in several segments.
+ */
+class LargeTableTest extends TestBase {
+    private static final long TWO_GB = 2L * 1024 * 1024 * 1024;
+
+    @Test
+    void segmentBoundaries(@TempDir File data) throws IOException {
+        // Blocks of various sizes crossing the boundaries of tiny segments
+        final LSMConfig config = LSMConfig.builder()
+                .compression(Compression.NONE)
+                .mappedSegmentSize(10_000)
+                .build();
+        final int keys = 2000;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), value(i, 1 + i % 3000));
+            }
+            dao.compact();
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                assertEquals(value(i, 1 + i % 3000), dao.get(key(i)));
+            }
+            assertEquals(keys, count(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    /**
+     * Takes several minutes and about 5 GB of disk, run with -Dlsm.largeTests=true.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "lsm.largeTests", matches = "true")
+    void compactsOverTwoGigabytes(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(8 * 1024 * 1024)
+                .compression(Compression.NONE)
+                .build();
+        final int valueSize = 4096;
+        final int keys = (int) (TWO_GB / valueSize) + 100_000;
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), value(i, valueSize));
+            }
+            dao.compact();
+        }
+
+        final List<Path> tables = tables(data);
+        assertEquals(1, tables.size());
+        assertTrue(Files.size(tables.get(0)) > TWO_GB);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final Random random = new Random();
+            for (int i = 0; i < 10_000; i++) {
+                final int key = random.nextInt(keys);
+                assertEquals(value(key, valueSize), dao.get(key(key)));
+            }
+            assertEquals(value(keys - 1, valueSize), dao.get(key(keys - 1)));
+            assertEquals(keys, count(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    private static List<Path> tables(final File data) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.filter(p -> p.toString().endsWith(".dat")).collect(Collectors.toList());
+        }
+    }
+
+    private static int count(final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            records.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static ByteBuffer value(
+            final int i,
+            final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(i).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
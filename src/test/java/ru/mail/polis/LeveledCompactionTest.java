@@ -0,0 +1,204 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that leveled compaction keeps the newest values while moving tables down the levels.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final int KEYS = 4000;
+    private static final int OPERATIONS = 40_000;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(32 * 1024)
+            .compression(Compression.NONE)
+            .leveledCompaction(true)
+            .level0CompactionTrigger(2)
+            .levelBaseSize(128 * 1024)
+            .levelSizeMultiplier(4)
+            .targetFileSize(32 * 1024)
+            .build();
+
+    @Test
+    void overwritesAndRemoves(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(42);
+        final int[] levels;
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                final ByteBuffer key = key(random.nextInt(KEYS));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomBuffer(64);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+            dao.compact();
+
+            levels = ((LSMDao) dao).getTablesPerLevel();
+            assertTrue(levels.length > 2, "Data should reach level 2");
+            assertTrue(levels[0] < CONFIG.getLevel0CompactionTrigger());
+            check(dao, expected);
+        }
+        assertTrue(new File(data, "MANIFEST").exists());
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertArrayEquals(levels, ((LSMDao) dao).getTablesPerLevel());
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void newerLevelWins(@TempDir File data) throws IOException {
+        final ByteBuffer key = key(0);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int round = 0; round < 20; round++) {
+                final ByteBuffer value = join(key, ByteBuffer.wrap(new byte[]{(byte) round}));
+                dao.upsert(key, value);
+                // Fill the memTable with other keys to flush the value
+                for (int i = 1; i < 400; i++) {
+                    dao.upsert(key(round * 1000 + i), randomBuffer(64));
+                }
+                dao.compact();
+                assertEquals(value, dao.get(key));
+            }
+            dao.remove(key);
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            final Iterator<Record> records = dao.range(key, key(1));
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void compactAfterRemovingEverything(@TempDir File data) throws IOException {
+        final int keys = KEYS / 10;
+        final LSMConfig sizeTiered = LSMConfig.builder()
+                .flushThreshold(32 * 1024)
+                .compression(Compression.NONE)
+                .build();
+        try (DAO dao = DAOFactory.create(data, sizeTiered)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), randomBuffer(64));
+            }
+            dao.compact();
+            for (int i = 0; i < keys; i++) {
+                dao.remove(key(i));
+            }
+            // Every cell is purged, so nothing is left on disk
+            dao.compact();
+            assertEquals(0, Arrays.stream(((LSMDao) dao).getTablesPerLevel()).sum());
+        }
+
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < keys; i++) {
+                    dao.remove(key(i));
+                }
+                dao.compact();
+                for (int i = 0; i < keys; i++) {
+                    final ByteBuffer value = randomBuffer(64);
+                    dao.upsert(key(round * keys + i), value);
+                    expected.put(key(round * keys + i), value);
+                }
+                dao.compact();
+            }
+            for (int i = 0; i < keys; i++) {
+                expected.remove(key(i));
+            }
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void rangeDeleteSpanningSplits(@TempDir File data) throws IOException {
+        // Keys less than 128 compare as their numbers
+        final int keys = 120;
+        final LSMConfig config = LSMConfig.builder()
+                .compression(Compression.NONE)
+                .leveledCompaction(true)
+                .level0CompactionTrigger(2)
+                .targetFileSize(2 * 1024)
+                .tombstoneGracePeriod(3_600_000)
+                .metrics(true)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), randomBuffer(64));
+            }
+        }
+        try (DAO dao = DAOFactory.create(data, config)) {
+            // The keys written back after the removal make the output split within the removed range
+            dao.removeRange(key(keys / 4), key(keys * 3 / 4));
+            for (int i = keys / 4; i < keys * 3 / 4; i++) {
+                dao.upsert(key(i), randomBuffer(64));
+            }
+            dao.compact();
+            final int[] levels = ((LSMDao) dao).getTablesPerLevel();
+            assertEquals(2, levels.length);
+            assertEquals(0, levels[0]);
+            assertTrue(levels[1] > 2);
+        }
+        // Tables of a level don't overlap even at their boundaries, so a lookup opens a single one
+        for (int i = 0; i < keys; i++) {
+            try (DAO dao = DAOFactory.create(data, config)) {
+                dao.get(key(i));
+                assertEquals(1, ((LSMDao) dao).getMetrics().gauge("openFileTables"), "Key " + i);
+            }
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+        final List<Record> records = new ArrayList<>();
+        dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(records::add);
+        assertEquals(expected.size(), records.size());
+        final Iterator<Record> actual = records.iterator();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
@@ -0,0 +1,131 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the manifest lists the tables, so that they are opened only when read.
+ */
+class ManifestTest extends TestBase {
+    private static final int TABLES = 5;
+    private static final int KEYS = 100;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .sizeTieredMinThreshold(Integer.MAX_VALUE)
+            .sizeTieredMaxThreshold(Integer.MAX_VALUE)
+            .metrics(true)
+            .build();
+
+    @Test
+    void tablesAreOpenedLazily(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final Metrics metrics = ((LSMDao) dao).getMetrics();
+            assertEquals(TABLES, metrics.gauge("fileTables"));
+            // The number of tombstones is kept by the manifest too
+            assertEquals(0, metrics.gauge("tombstones"));
+            assertEquals(0, metrics.gauge("openFileTables"));
+
+            // Key ranges of the tables don't overlap, so a lookup opens a single one
+            assertEquals(value(KEYS + 1), dao.get(key(KEYS + 1)));
+            assertEquals(1, metrics.gauge("openFileTables"));
+
+            check(dao);
+            assertEquals(TABLES, metrics.gauge("openFileTables"));
+        }
+    }
+
+    @Test
+    void leftoversAreDeleted(@TempDir File data) throws IOException {
+        fill(data);
+        final File tmp = new File(data, "100ssTable.tmp");
+        final File unlisted = new File(data, "101ssTable.dat");
+        final File trash = new File(data, "trash.dat");
+        assertTrue(tmp.createNewFile() && unlisted.createNewFile() && trash.createNewFile());
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao);
+        }
+        assertFalse(tmp.exists());
+        assertFalse(unlisted.exists());
+        assertTrue(trash.exists());
+    }
+
+    @Test
+    void trailingBytesAreRejected(@TempDir File data) throws IOException {
+        fill(data);
+        // An intact edit removing and adding nothing, followed by bytes no edit has
+        final ByteBuffer payload = ByteBuffer.allocate(3 * Integer.BYTES).putInt(0).putInt(0).putInt(42);
+        final CRC32C crc = new CRC32C();
+        crc.update(payload.array());
+        final ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + payload.capacity())
+                .putInt(payload.capacity())
+                .putInt((int) crc.getValue())
+                .put(payload.array());
+        Files.write(new File(data, "MANIFEST").toPath(), record.array(), StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> DAOFactory.create(data, CONFIG));
+    }
+
+    @Test
+    void startsWithoutManifest(@TempDir File data) throws IOException {
+        fill(data);
+        // Stores written before the manifest have only the tables
+        final File manifest = new File(data, "MANIFEST");
+        Files.delete(manifest.toPath());
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao);
+            dao.compact();
+            check(dao);
+        }
+        assertTrue(manifest.exists());
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertEquals(1, ((LSMDao) dao).getMetrics().gauge("fileTables"));
+            check(dao);
+        }
+    }
+
+    /**
+     * Writes every table a range of keys of its own, closing the DAO flushes the table.
+     */
+    private static void fill(final File data) throws IOException {
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data, CONFIG)) {
+                for (int i = table * KEYS; i < (table + 1) * KEYS; i++) {
+                    dao.upsert(key(i), value(i));
+                }
+            }
+        }
+    }
+
+    private static void check(final DAO dao) throws IOException {
+        for (int i = 0; i < TABLES * KEYS; i++) {
+            assertEquals(value(i), dao.get(key(i)));
+        }
+    }
+
+    /**
+     * Zero-padded decimal keys, their byte order is the numeric one.
+     */
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, i * 31L);
+    }
+}
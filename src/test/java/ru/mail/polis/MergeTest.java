@@ -0,0 +1,80 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks scans merging many tables holding different versions of the same keys.
+ */
+class MergeTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final int TABLES = 24;
+
+    // Compaction would start only at 32 tables of similar size
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(Long.MAX_VALUE)
+            .compression(Compression.NONE)
+            .sizeTieredMinThreshold(32)
+            .build();
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(13);
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data, CONFIG)) {
+                for (int i = 0; i < KEYS / 4; i++) {
+                    final ByteBuffer key = key(random.nextInt(KEYS));
+                    if (random.nextInt(5) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(32);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertEquals(TABLES, ((LSMDao) dao).getTablesPerLevel()[0]);
+            check(dao.iterator(ByteBuffer.allocate(0)), expected);
+            final ByteBuffer from = key(KEYS / 2);
+            check(dao.iterator(from), expected.tailMap(from, true));
+            check(dao.range(key(10), key(100)), expected.subMap(key(10), key(100)));
+        }
+    }
+
+    private static void check(
+            final Iterator<Record> actual,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
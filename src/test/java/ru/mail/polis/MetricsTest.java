@@ -0,0 +1,135 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.LatencyHistogram;
+import ru.mail.polis.persistence.Metrics;
+import ru.mail.polis.persistence.MetricsListener;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the metrics of operations, flushes and compactions and their publishing.
+ */
+class MetricsTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void operationsAreCounted(@TempDir File data) throws IOException {
+        final Map<Metrics.Operation, AtomicLong> heard = new ConcurrentHashMap<>();
+        final MetricsListener listener = (operation, nanos) ->
+                heard.computeIfAbsent(operation, o -> new AtomicLong()).incrementAndGet();
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(64 * 1024)
+                .metricsListener(listener)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final Metrics metrics = ((LSMDao) dao).getMetrics();
+            assertTrue(metrics.isEnabled());
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomValue());
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.getStream(key, new ByteArrayOutputStream()));
+            dao.iterator(key);
+            dao.compact();
+
+            assertEquals(KEYS + 1, metrics.latency(Metrics.Operation.UPSERT).getCount());
+            assertEquals(1, metrics.latency(Metrics.Operation.REMOVE).getCount());
+            assertEquals(2, metrics.latency(Metrics.Operation.GET).getCount());
+            assertEquals(1, metrics.latency(Metrics.Operation.ITERATOR).getCount());
+            assertEquals(KEYS + 1, heard.get(Metrics.Operation.UPSERT).get());
+            final LatencyHistogram upserts = metrics.latency(Metrics.Operation.UPSERT);
+            assertTrue(upserts.getPercentile(0.5) <= upserts.getPercentile(0.99));
+            assertTrue(upserts.getPercentile(0.99) <= upserts.getMax());
+            assertTrue(upserts.getMean() > 0 && upserts.getMean() <= upserts.getMax());
+
+            final long flushes = metrics.count(Metrics.Counter.FLUSHES);
+            assertTrue(flushes > 1);
+            assertEquals(flushes, metrics.latency(Metrics.Operation.FLUSH).getCount());
+            assertTrue(metrics.count(Metrics.Counter.FLUSHED_BYTES) > KEYS * 1024L);
+            assertTrue(metrics.count(Metrics.Counter.COMPACTIONS) >= 1);
+            assertTrue(metrics.count(Metrics.Counter.COMPACTION_BYTES_IN)
+                    >= metrics.count(Metrics.Counter.COMPACTION_BYTES_OUT));
+            assertEquals(1, metrics.gauge("fileTables"));
+            assertEquals(0, metrics.gauge("memTableSize"));
+        }
+    }
+
+    @Test
+    void failedOperationsAreTimed(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(0)
+                .metrics(true)
+                .build();
+        final DAO dao = DAOFactory.create(data, config);
+        final Metrics metrics = ((LSMDao) dao).getMetrics();
+        // The first flush can't create its file, the failure fails the following writes
+        assertTrue(new File(data, "1ssTable.tmp").createNewFile());
+        int upserts = 0;
+        boolean failed = false;
+        while (!failed && upserts < KEYS) {
+            upserts++;
+            try {
+                dao.upsert(randomKey(), randomValue());
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        assertTrue(failed);
+        assertEquals(upserts, metrics.latency(Metrics.Operation.UPSERT).getCount());
+        assertThrows(IOException.class, () -> dao.remove(randomKey()));
+        assertEquals(1, metrics.latency(Metrics.Operation.REMOVE).getCount());
+        assertThrows(IOException.class, dao::close);
+    }
+
+    @Test
+    void disabledByDefault(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, LSMConfig.defaults())) {
+            dao.upsert(randomKey(), randomValue());
+            final Metrics metrics = ((LSMDao) dao).getMetrics();
+            assertFalse(metrics.isEnabled());
+            assertEquals(0, metrics.latency(Metrics.Operation.UPSERT).getCount());
+            assertTrue(metrics.getGauges().isEmpty());
+        }
+    }
+
+    @Test
+    void publishedOverJmx(@TempDir File data) throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(
+                "ru.mail.polis:type=LSMDao,path=" + ObjectName.quote(data.getAbsolutePath()));
+        try (DAO dao = DAOFactory.create(data, LSMConfig.builder().jmx(true).build())) {
+            dao.upsert(randomKey(), randomValue());
+            assertTrue(server.isRegistered(name));
+            final TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            final CompositeData upsert = (CompositeData) latencies.get(new Object[]{"UPSERT"}).get("value");
+            assertEquals(1L, upsert.get("count"));
+            final TabularData gauges = (TabularData) server.getAttribute(name, "Gauges");
+            assertEquals(0L, gauges.get(new Object[]{"fileTables"}).get("value"));
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
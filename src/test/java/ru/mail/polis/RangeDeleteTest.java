@@ -0,0 +1,206 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks removal of key ranges with range tombstones in the memTable and on disk.
+ */
+class RangeDeleteTest extends TestBase {
+    private static final int KEYS = 4000;
+    private static final int OPERATIONS = 30_000;
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        mixedWorkload(data, LSMConfig.builder()
+                .flushThreshold(32 * 1024)
+                .build());
+    }
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        // Outputs split by the target size share the range tombstones crossing them
+        mixedWorkload(data, LSMConfig.builder()
+                .flushThreshold(32 * 1024)
+                .compression(Compression.NONE)
+                .leveledCompaction(true)
+                .level0CompactionTrigger(2)
+                .levelBaseSize(128 * 1024)
+                .levelSizeMultiplier(4)
+                .targetFileSize(16 * 1024)
+                .build());
+    }
+
+    @Test
+    void removesOnlyOlderValues(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, LSMConfig.builder().build())) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+            dao.removeRange(key(2), key(8));
+            dao.upsert(key(5), value(50));
+            // Empty and inverted ranges remove nothing
+            dao.removeRange(key(9), key(9));
+            dao.removeRange(key(9), key(0));
+
+            assertEquals(value(1), dao.get(key(1)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(2)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(7)));
+            assertEquals(value(50), dao.get(key(5)));
+            assertEquals(value(8), dao.get(key(8)));
+            assertEquals(value(9), dao.get(key(9)));
+
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            for (final int i : new int[]{0, 1, 8, 9}) {
+                expected.put(key(i), value(i));
+            }
+            expected.put(key(5), value(50));
+            check(dao.iterator(ByteBuffer.allocate(0)), expected);
+            check(dao.descendingIterator(key(KEYS)), expected.descendingMap());
+        }
+    }
+
+    @Test
+    void snapshotKeepsRemovedRange(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, LSMConfig.builder().build())) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(key(i), value(i));
+                expected.put(key(i), value(i));
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.removeRange(key(10), key(90));
+                assertEquals(value(50), snapshot.get(key(50)));
+                check(snapshot.iterator(ByteBuffer.allocate(0)), expected);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(50)));
+            }
+        }
+    }
+
+    @Test
+    void compactionDropsCoveredData(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(256 * 1024)
+                .compression(Compression.NONE)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomBuffer(1024));
+            }
+            dao.compact();
+            final long full = size(data);
+            dao.removeRange(key(10), key(KEYS));
+            dao.compact();
+            assertTrue(size(data) < full / 100);
+            assertEquals(10, count(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    private static void mixedWorkload(
+            final File data,
+            final LSMConfig config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(17);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int op = random.nextInt(100);
+                final int k = random.nextInt(KEYS);
+                if (op == 0) {
+                    final ByteBuffer from = key(k);
+                    final ByteBuffer to = key(k + random.nextInt(KEYS / 10));
+                    dao.removeRange(from, to);
+                    expected.subMap(from, to).clear();
+                } else if (op < 10) {
+                    dao.remove(key(k));
+                    expected.remove(key(k));
+                } else {
+                    final ByteBuffer value = randomBuffer(48);
+                    dao.upsert(key(k), value);
+                    expected.put(key(k), value);
+                }
+            }
+            verify(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data, config)) {
+            verify(dao, expected);
+            dao.compact();
+            verify(dao, expected);
+        }
+    }
+
+    private static void verify(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        check(dao.iterator(ByteBuffer.allocate(0)), expected);
+        check(dao.descendingIterator(key(KEYS)), expected.descendingMap());
+        for (int i = 0; i < KEYS; i += 7) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+    }
+
+    private static void check(
+            final Iterator<Record> actual,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static int count(final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            records.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static long size(final File data) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.filter(p -> p.toString().endsWith(".dat")).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Zero-padded decimal keys, their byte order is the numeric one.
+     */
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.Metrics;
+import ru.mail.polis.persistence.ReadStats;
+import ru.mail.polis.persistence.TrackedIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the read amplification counted by the iterators.
+ */
+class ReadStatsTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final int REMOVED = 10;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .sizeTieredMinThreshold(Integer.MAX_VALUE)
+            .sizeTieredMaxThreshold(Integer.MAX_VALUE)
+            .readStats(true)
+            .metrics(true)
+            .build();
+
+    @Test
+    void mergeOfOverlappingTables(@TempDir File data) throws IOException {
+        // Closing the DAO flushes every round to a table of its own
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = DAOFactory.create(data, CONFIG)) {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(key(i), randomValue());
+                }
+            }
+        }
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < REMOVED; i++) {
+                dao.remove(key(i));
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertTrue(records instanceof TrackedIterator);
+            assertEquals(KEYS - REMOVED, count(records));
+            final ReadStats stats = ((TrackedIterator<Record>) records).getReadStats();
+            assertEquals(3, stats.getTables());
+            assertEquals(2 * KEYS + REMOVED, stats.getCells());
+            assertEquals(REMOVED, stats.getTombstonesSkipped());
+            // Every key has a version in 2 tables, the removed ones in 3
+            assertEquals(KEYS + REMOVED, stats.getDuplicatesCollapsed());
+            assertTrue(stats.getBlocks() >= 3);
+            assertTrue(stats.getIndexProbes() >= 3);
+
+            final Metrics metrics = ((LSMDao) dao).getMetrics();
+            assertEquals(stats.getCells(), metrics.count(Metrics.Counter.READ_CELLS));
+            assertEquals(stats.getDuplicatesCollapsed(), metrics.count(Metrics.Counter.READ_DUPLICATES_COLLAPSED));
+            assertEquals(stats.getTombstonesSkipped(), metrics.count(Metrics.Counter.READ_TOMBSTONES_SKIPPED));
+
+            // Range keeps the stats of the iterator and stops before the end of the tables
+            final Iterator<Record> range = dao.range(key(REMOVED), key(2 * REMOVED));
+            assertEquals(REMOVED, count(range));
+            final ReadStats rangeStats = ((TrackedIterator<Record>) range).getReadStats();
+            assertEquals(3, rangeStats.getTables());
+            assertTrue(rangeStats.getCells() < stats.getCells());
+            assertEquals(6, metrics.count(Metrics.Counter.READ_TABLES));
+        }
+    }
+
+    @Test
+    void disabledByDefault(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, LSMConfig.defaults())) {
+            dao.upsert(key(1), randomValue());
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)) instanceof TrackedIterator);
+            assertFalse(dao.range(key(0), key(2)) instanceof TrackedIterator);
+        }
+    }
+
+    private static int count(final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            records.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that flushed tables are merged in the background without calling {@link DAO#compact()}.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final int OPERATIONS = 4000;
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+    private static final int VALUE_LENGTH = 256;
+
+    @Test
+    void mergesInBackground(@TempDir File data) throws IOException, InterruptedException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(FLUSH_THRESHOLD)
+                .compression(Compression.NONE)
+                .sizeTieredMinThreshold(4)
+                .sizeTieredMaxThreshold(8)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final Random random = new Random(7);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, random.nextInt(KEYS));
+                if (random.nextInt(8) == 0) {
+                    dao.remove(key);
+                    expected.put(key, null);
+                } else {
+                    final ByteBuffer value = randomBuffer(VALUE_LENGTH);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            // About 60 tables were flushed, wait for the compactions to catch up
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (tables(dao) >= 16 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(tables(dao) < 16, "Tables left: " + tables(dao));
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(dao, expected);
+        }
+    }
+
+    private static int tables(final DAO dao) {
+        final int[] levels = ((LSMDao) dao).getTablesPerLevel();
+        return levels.length == 0 ? 0 : levels[0];
+    }
+
+    private static void check(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            if (entry.getValue() == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(entry.getKey()));
+            } else {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+}
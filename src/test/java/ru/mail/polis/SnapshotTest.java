@@ -0,0 +1,125 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that snapshots keep their view of the data while it is overwritten, flushed and compacted.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 2000;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(16 * 1024)
+            .build();
+
+    @Test
+    void stableView(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(11);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            write(dao, random, expected);
+            final NavigableMap<ByteBuffer, ByteBuffer> pinned = new TreeMap<>(expected);
+            try (Snapshot snapshot = dao.snapshot()) {
+                // Iterator opened before the writes
+                final Iterator<Record> early = snapshot.iterator(ByteBuffer.allocate(0));
+                write(dao, random, expected);
+                dao.compact();
+                write(dao, random, expected);
+
+                check(early, pinned);
+                check(snapshot.iterator(ByteBuffer.allocate(0)), pinned);
+                check(snapshot.descendingIterator(key(KEYS)), pinned.headMap(key(KEYS), true).descendingMap());
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = key(i);
+                    final ByteBuffer value = pinned.get(key);
+                    if (value == null) {
+                        assertThrows(NoSuchElementException.class, () -> snapshot.get(key));
+                    } else {
+                        assertEquals(value, snapshot.get(key));
+                    }
+                }
+                assertTrue(hasObsolete(data));
+            }
+            assertFalse(hasObsolete(data));
+            check(dao.iterator(ByteBuffer.allocate(0)), expected);
+        }
+    }
+
+    @Test
+    void obsoleteFilesAreNotOpened(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(12);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            write(dao, random, expected);
+            final Snapshot snapshot = dao.snapshot();
+            write(dao, random, expected);
+            dao.compact();
+            assertTrue(hasObsolete(data));
+            // Left open while the DAO is closed
+            snapshot.iterator(ByteBuffer.allocate(0)).next();
+        }
+        assertFalse(hasObsolete(data));
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao.iterator(ByteBuffer.allocate(0)), expected);
+        }
+    }
+
+    private static void write(
+            final DAO dao,
+            final Random random,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(random.nextInt(KEYS));
+            if (random.nextInt(5) == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else {
+                final ByteBuffer value = randomBuffer(32);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+    }
+
+    private static void check(
+            final Iterator<Record> actual,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static boolean hasObsolete(final File data) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.anyMatch(p -> p.toString().endsWith(".obsolete"));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
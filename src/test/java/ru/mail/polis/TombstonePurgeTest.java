@@ -0,0 +1,117 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.Compression;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that compactions drop tombstones only when no older data is left for them to shadow.
+ */
+class TombstonePurgeTest extends TestBase {
+    private static final int KEYS = 1000;
+    // Every 256 removals of 4-byte keys fill a memTable, the last ones stay in memory
+    private static final int REMOVED = 700;
+    private static final int FLUSHED_TOMBSTONES = 512;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(1024)
+            .compression(Compression.NONE)
+            .sizeTieredMinThreshold(2)
+            .sizeTieredMaxThreshold(2)
+            .build();
+
+    @Test
+    void keptOverOlderData(@TempDir File data) throws IOException, InterruptedException {
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            remove(dao);
+            // Two tables of tombstones are merged in the background above the table holding the values
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while ((tables(dao) != 2 || ((LSMDao) dao).getTombstones() < FLUSHED_TOMBSTONES)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, tables(dao));
+            assertEquals(FLUSHED_TOMBSTONES, ((LSMDao) dao).getTombstones());
+            check(dao);
+
+            // Nothing is older than the result of the full compaction
+            dao.compact();
+            assertEquals(0L, ((LSMDao) dao).getTombstones());
+            check(dao);
+        }
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao);
+        }
+    }
+
+    @Test
+    void keptWithinGracePeriod(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(1024)
+                .compression(Compression.NONE)
+                .tombstoneGracePeriod(TimeUnit.HOURS.toMillis(1))
+                .build();
+        fill(data);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            remove(dao);
+            dao.compact();
+            assertEquals(REMOVED, ((LSMDao) dao).getTombstones());
+            check(dao);
+        }
+    }
+
+    /**
+     * Writes the values to a single table.
+     */
+    private static void fill(final File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, LSMConfig.builder().compression(Compression.NONE).build())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+    }
+
+    private static void remove(final DAO dao) throws IOException {
+        for (int i = 0; i < REMOVED; i++) {
+            dao.remove(key(i));
+        }
+    }
+
+    private static void check(final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i < REMOVED) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i), dao.get(key));
+            }
+        }
+    }
+
+    private static int tables(final DAO dao) {
+        final int[] levels = ((LSMDao) dao).getTablesPerLevel();
+        return levels.length == 0 ? 0 : levels[0];
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static ByteBuffer value(final int i) {
+        final ByteBuffer value = ByteBuffer.allocate(1024);
+        value.putInt(0, i);
+        return value;
+    }
+}
@@ -0,0 +1,240 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks values stored in the value log apart from the tables.
+ */
+class ValueLogTest extends TestBase {
+    private static final int THRESHOLD = 1024;
+    private static final int KEYS = 200;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(64 * 1024)
+            .valueLogThreshold(THRESHOLD)
+            .valueLogFileSize(256 * 1024)
+            .build();
+
+    @Test
+    void largeValuesSurviveReopenAndCompaction(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(i % 2 == 0 ? 4 * THRESHOLD : 16);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+            final ByteBuffer batched = randomBuffer(THRESHOLD);
+            dao.write(new WriteBatch().upsert(key(KEYS), batched).remove(key(0)));
+            expected.put(key(KEYS), batched);
+            expected.remove(key(0));
+            check(dao, expected);
+        }
+        // Tables hold pointers, not the values
+        assertTrue(size(data, ".dat") < KEYS / 2 * THRESHOLD);
+        assertTrue(size(data, ".vlog") >= KEYS / 2 * 4 * THRESHOLD);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void streams(@TempDir File data) throws IOException {
+        final byte[] large = new byte[10 * THRESHOLD + 7];
+        final byte[] small = new byte[THRESHOLD - 1];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        final LSMConfig config = LSMConfig.builder()
+                .valueLogThreshold(THRESHOLD)
+                .metrics(true)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsertStream(key(1), new ByteArrayInputStream(large));
+            dao.upsertStream(key(2), new ByteArrayInputStream(small));
+            // Streamed values are timed like the other upserts
+            assertEquals(2, ((LSMDao) dao).getMetrics().latency(Metrics.Operation.UPSERT).getCount());
+            assertArrayEquals(large, read(dao, key(1)));
+            assertArrayEquals(small, read(dao, key(2)));
+        }
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertArrayEquals(large, read(dao, key(1)));
+            assertArrayEquals(small, read(dao, key(2)));
+        }
+    }
+
+    @Test
+    void getToChannel(@TempDir File data) throws IOException {
+        final ByteBuffer large = randomBuffer(10 * THRESHOLD);
+        final ByteBuffer small = randomBuffer(16);
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            dao.upsert(key(1), large);
+            dao.upsert(key(2), small);
+        }
+        final Path out = data.toPath().resolve("out");
+        try (DAO dao = DAOFactory.create(data, CONFIG);
+             FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertEquals(large.remaining(), dao.getTo(key(1), channel));
+            assertEquals(small.remaining(), dao.getTo(key(2), channel));
+            assertThrows(NoSuchElementException.class, () -> dao.getTo(key(3), channel));
+        }
+        assertEquals(join(large, small), ByteBuffer.wrap(Files.readAllBytes(out)));
+    }
+
+    @Test
+    void garbageCollectionReclaimsOverwrittenValues(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int round = 0; round < 4; round++) {
+                // The last round leaves half of the values of the previous one live, so they are moved
+                for (int i = 0; i < KEYS; i += round == 3 ? 2 : 1) {
+                    final ByteBuffer value = randomBuffer(4 * THRESHOLD);
+                    dao.upsert(key(i), value);
+                    expected.put(key(i), value);
+                }
+            }
+        }
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(64 * 1024)
+                .valueLogThreshold(THRESHOLD)
+                .valueLogFileSize(256 * 1024)
+                .metrics(true)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            // Reads open the channels of all the files
+            check(dao, expected);
+            final Iterator<Record> opened = dao.iterator(ByteBuffer.allocate(0));
+
+            final LSMDao lsm = (LSMDao) dao;
+            final long before = lsm.getValueLogSize();
+            lsm.collectValueLog();
+            assertTrue(lsm.getValueLogSize() < before / 2);
+            // A single flush of the new pointers for all the files
+            assertEquals(1, lsm.getMetrics().count(Metrics.Counter.FLUSHES));
+            // Channels of the deleted files are closed, so their space is freed
+            assertEquals(0, deletedValueLogs());
+            check(dao, expected);
+            // Values moved after the iterator was opened are read from their new place
+            check(opened, expected);
+
+            // Nothing is left to collect
+            final long after = lsm.getValueLogSize();
+            lsm.collectValueLog();
+            assertTrue(lsm.getValueLogSize() <= after);
+        }
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void snapshotKeepsCollectedValues(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final ByteBuffer old = randomBuffer(4 * THRESHOLD);
+            dao.upsert(key(1), old);
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(2), randomBuffer(4 * THRESHOLD));
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(key(1), randomBuffer(4 * THRESHOLD));
+                ((LSMDao) dao).collectValueLog();
+                assertEquals(old, snapshot.get(key(1)));
+            }
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (int i = 0; i <= KEYS; i++) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+        check(dao.iterator(ByteBuffer.allocate(0)), expected);
+    }
+
+    private static void check(
+            final Iterator<Record> records,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Number of the deleted value log files still open by the process.
+     */
+    private static long deletedValueLogs() throws IOException {
+        final Path descriptors = Paths.get("/proc/self/fd");
+        assumeTrue(Files.isDirectory(descriptors), "Open files are only listed on Linux");
+        try (Stream<Path> links = Files.list(descriptors)) {
+            return links.filter(link -> {
+                try {
+                    return Files.readSymbolicLink(link).toString().endsWith(".vlog (deleted)");
+                } catch (IOException e) {
+                    // The descriptor listing the folder itself is closed already
+                    return false;
+                }
+            }).count();
+        }
+    }
+
+    private static byte[] read(
+            final DAO dao,
+            final ByteBuffer key) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dao.getStream(key, out);
+        return out.toByteArray();
+    }
+
+    private static long size(
+            final File data,
+            final String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.filter(p -> p.toString().endsWith(suffix)).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+}
@@ -0,0 +1,162 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that writes survive a crash before their memTable is flushed.
+ */
+class WriteAheadLogTest extends TestBase {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 250;
+
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(1024 * 1024)
+            .writeAheadLog(true)
+            .walSyncPolicy(SyncPolicy.ALWAYS)
+            .build();
+
+    @Test
+    void replaysAfterCrash(
+            @TempDir File root) throws Exception {
+        // JUnit 5.4 gives all the @TempDir parameters the same directory
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final List<ByteBuffer> removed = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+            for (final ByteBuffer key : expected.keySet()) {
+                if (removed.size() < 100) {
+                    dao.remove(key);
+                    removed.add(key);
+                }
+            }
+            // The files as they are at the moment of a crash
+            copy(data, crashed);
+        }
+        for (final ByteBuffer key : removed) {
+            expected.remove(key);
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, CONFIG)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            for (final ByteBuffer key : removed) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+        assertFalse(hasLog(crashed));
+    }
+
+    @Test
+    void ignoresTornRecord(
+            @TempDir File root) throws IOException {
+        // JUnit 5.4 gives all the @TempDir parameters the same directory
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            dao.upsert(key, value);
+            copy(data, crashed);
+        }
+
+        // Half of a record with a large length
+        final ByteBuffer torn = ByteBuffer.allocate(6).putInt(1024).putShort((short) 42);
+        torn.flip();
+        try (Stream<Path> files = Files.list(crashed.toPath())) {
+            for (final Path path : files.filter(p -> p.toString().endsWith(".wal")).collect(Collectors.toList())) {
+                Files.write(path, torn.array(), StandardOpenOption.APPEND);
+            }
+        }
+
+        final ByteBuffer next = randomKey();
+        try (DAO dao = DAOFactory.create(crashed, CONFIG)) {
+            assertEquals(value, dao.get(key));
+            dao.upsert(next, value);
+        }
+        try (DAO dao = DAOFactory.create(crashed, CONFIG)) {
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(next));
+        }
+    }
+
+    @Test
+    void dropsFlushedSegments(@TempDir File data) throws IOException {
+        final LSMConfig config = LSMConfig.builder()
+                .flushThreshold(64 * 1024)
+                .writeAheadLog(true)
+                .walSyncPolicy(SyncPolicy.NEVER)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            assertTrue(hasLog(data));
+        }
+        assertFalse(hasLog(data));
+    }
+
+    private static boolean hasLog(final File dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir.toPath())) {
+            return files.anyMatch(p -> p.toString().endsWith(".wal"));
+        }
+    }
+
+    private static void copy(
+            final File from,
+            final File to) throws IOException {
+        try (Stream<Path> files = Files.list(from.toPath())) {
+            for (final Path path : files.collect(Collectors.toList())) {
+                Files.copy(path, to.toPath().resolve(path.getFileName()));
+            }
+        }
+    }
+}
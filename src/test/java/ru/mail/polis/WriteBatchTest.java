@@ -0,0 +1,131 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that operations of a {@link WriteBatch} are applied and logged together.
+ */
+class WriteBatchTest extends TestBase {
+    private static final LSMConfig CONFIG = LSMConfig.builder()
+            .flushThreshold(64 * 1024)
+            .writeAheadLog(true)
+            .walSyncPolicy(SyncPolicy.ALWAYS)
+            .build();
+
+    @Test
+    void lastOperationWins(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            dao.upsert(removed, value);
+            dao.write(new WriteBatch()
+                    .upsert(key, randomValue())
+                    .remove(key)
+                    .upsert(key, value)
+                    .remove(removed));
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void visibleAtOnce(@TempDir File data) throws Exception {
+        final ByteBuffer first = randomKey();
+        final ByteBuffer second = randomKey();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            dao.write(new WriteBatch().upsert(first, counter(0)).upsert(second, counter(0)));
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                final Future<?> reader = executor.submit(() -> {
+                    while (!done.get()) {
+                        // The second key is stored last, once it is seen the first one must be there too
+                        final long seen = dao.get(second).getLong(0);
+                        assertTrue(dao.get(first).getLong(0) >= seen);
+                    }
+                    return null;
+                });
+                for (long i = 1; i <= 2_000; i++) {
+                    final WriteBatch batch = new WriteBatch().upsert(second, counter(i));
+                    // Fillers widen the gap between the keys and make the memTable flush now and then
+                    for (int j = 0; j < 50; j++) {
+                        batch.upsert(randomKey(), randomBuffer(16));
+                    }
+                    dao.write(batch.upsert(first, counter(i)));
+                }
+                done.set(true);
+                reader.get();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void replaysWholeOrNothing(
+            @TempDir File root) throws IOException {
+        // JUnit 5.4 gives all the @TempDir parameters the same directory
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+        final ByteBuffer logged = randomKey();
+        final ByteBuffer torn = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            dao.write(new WriteBatch().upsert(logged, value).upsert(randomKey(), value));
+            dao.write(new WriteBatch().upsert(torn, value).upsert(randomKey(), value));
+            try (Stream<Path> files = Files.list(data.toPath())) {
+                for (final Path path : files.collect(Collectors.toList())) {
+                    Files.copy(path, crashed.toPath().resolve(path.getFileName()));
+                }
+            }
+        }
+
+        // Cut the end of the second batch
+        final List<Path> logs;
+        try (Stream<Path> files = Files.list(crashed.toPath())) {
+            logs = files.filter(p -> p.toString().endsWith(".wal")).collect(Collectors.toList());
+        }
+        assertEquals(1, logs.size());
+        try (FileChannel fc = FileChannel.open(logs.get(0), StandardOpenOption.WRITE)) {
+            fc.truncate(fc.size() - 10);
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, CONFIG)) {
+            assertEquals(value, dao.get(logged));
+            assertThrows(NoSuchElementException.class, () -> dao.get(torn));
+        }
+    }
+
+    private static ByteBuffer counter(final long i) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, i);
+    }
+}